@@ -102,6 +102,7 @@ public class SetActivity extends Activity {
     setActivity.setOther.addView(PublicTools.createSwitchCard(this, getString(R.string.set_force_desktop_mode), getString(R.string.set_force_desktop_mode_detail), AppData.setting.getForceDesktopMode(), isChecked -> AppData.setting.setForceDesktopMode(isChecked)).getRoot());
     setActivity.setOther.addView(PublicTools.createSwitchCard(this, getString(R.string.set_try_start_default_in_app_transfer), getString(R.string.set_try_start_default_in_app_transfer_detail), AppData.setting.getTryStartDefaultInAppTransfer(), isChecked -> AppData.setting.setTryStartDefaultInAppTransfer(isChecked)).getRoot());
     setActivity.setOther.addView(PublicTools.createSwitchCard(this, getString(R.string.set_reconnect), getString(R.string.set_reconnect_detail), AppData.setting.getShowReconnect(), isChecked -> AppData.setting.setShowReconnect(isChecked)).getRoot());
+    setActivity.setOther.addView(PublicTools.createSwitchCard(this, getString(R.string.set_shared_io_thread), getString(R.string.set_shared_io_thread_detail), AppData.setting.getSharedIoThread(), isChecked -> AppData.setting.setSharedIoThread(isChecked)).getRoot());
     setActivity.setOther.addView(PublicTools.createSwitchCard(this, getString(R.string.set_connect_usb), getString(R.string.set_connect_usb_detail), AppData.setting.getShowConnectUSB(), isChecked -> AppData.setting.setShowConnectUSB(isChecked)).getRoot());
     setActivity.setOther.addView(PublicTools.createSpinnerCard(this, getString(R.string.set_auto_countdown), getString(R.string.set_auto_countdown_detail), AppData.setting.getCountdownTime(), reconnectTimeAdapter, str -> AppData.setting.setCountdownTime(str)).getRoot());
     setActivity.setOther.addView(PublicTools.createTextCardDetail(this, getString(R.string.set_app_monitor), getString(R.string.set_app_monitor_detail), () -> startActivity(new Intent(this, MonitorActivity.class))).getRoot());
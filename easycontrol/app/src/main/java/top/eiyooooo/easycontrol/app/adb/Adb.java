@@ -6,30 +6,58 @@ import android.hardware.usb.UsbDevice;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.security.MessageDigest;
+import java.util.HashSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import android.util.Pair;
 import top.eiyooooo.easycontrol.app.BuildConfig;
 import top.eiyooooo.easycontrol.app.R;
 import top.eiyooooo.easycontrol.app.buffer.Buffer;
+import top.eiyooooo.easycontrol.app.buffer.BufferPool;
 import top.eiyooooo.easycontrol.app.buffer.BufferStream;
 import top.eiyooooo.easycontrol.app.entity.AppData;
 import top.eiyooooo.easycontrol.app.entity.Device;
+import top.eiyooooo.easycontrol.app.helper.DeviceListAdapter;
 import top.eiyooooo.easycontrol.app.helper.L;
 import top.eiyooooo.easycontrol.app.helper.PublicTools;
 
 public class Adb {
-  public static final HashMap<String, Adb> adbMap = new HashMap<>();
-
   private final AdbChannel channel;
-  private int localIdPool = 1;
+  private final AtomicInteger localIdPool = new AtomicInteger(1);
   private int MAX_DATA = AdbProtocol.CONNECT_MAXDATA;
+  // 协商后的协议版本，以及是否启用delayed_ack
+  private int version = AdbProtocol.CONNECT_VERSION_MIN;
+  private boolean delayedAck = false;
+  // 对方支持LZ4压缩的sync v2时，push与拉取均压缩传输
+  private boolean syncLz4 = false;
+  // 对方支持shell v2时，命令的输出、错误与退出码分开传输
+  private boolean shellV2 = false;
   private final ConcurrentHashMap<Integer, BufferStream> connectionStreams = new ConcurrentHashMap<>(10);
-  private final ConcurrentHashMap<Integer, BufferStream> openStreams = new ConcurrentHashMap<>(5);
-  private final Buffer sendBuffer = new Buffer();
+  // 等待OPEN回复的调用方，按localId只唤醒对应的一个
+  private final ConcurrentHashMap<Integer, OpenHandle> openHandles = new ConcurrentHashMap<>(5);
+  // 待发送报文均来自缓冲池，写出后归还
+  // 每个优先级一个发送缓冲，handleOut按权重轮询
+  private final Buffer[] sendBuffers = {new Buffer(true), new Buffer(true), new Buffer(true), new Buffer(true)};
+  private final ByteBuffer[] sendBatch = new ByteBuffer[64];
+
+  // 发送优先级：控制 > 视频（主要是OKAY） > shell > sync，数值越小优先级越高
+  public static final int PRIORITY_CONTROL = 0;
+  public static final int PRIORITY_VIDEO = 1;
+  public static final int PRIORITY_SHELL = 2;
+  public static final int PRIORITY_SYNC = 3;
+  // 每轮各优先级最多取出的报文数
+  static final int[] SEND_WEIGHTS = {8, 4, 2, 1};
+  // 单次聚集写入的字节上限，大块数据最多占用连接一个批次
+  static final int MAX_BATCH_BYTES = 256 * 1024;
+  // 使用共享选择器线程时的连接，此时不创建handleIn与handleOut线程
+  private AdbSelector.Connection connection;
 
   private final Thread handleInThread = new Thread(this::handleIn);
   private final Thread handleOutThread = new Thread(this::handleOut);
@@ -37,12 +65,13 @@ public class Adb {
   private final String uuid;
   private static final String serverName = "/data/local/tmp/easycontrol_for_car_server_" + BuildConfig.VERSION_CODE + ".jar";
   public Thread startServerThread = new Thread(this::startServer);
-  public BufferStream serverShell;
+  public AdbShell serverShell;
 
-  public Adb(String uuid, String address, AdbKeyPair keyPair) throws Exception {
+  public Adb(String uuid, String address, boolean useNioChannel, AdbKeyPair keyPair) throws Exception {
     this.uuid = uuid;
     Pair<String, Integer> addressPair = PublicTools.getIpAndPort(address);
-    channel = new TcpChannel(addressPair.first, addressPair.second, false);
+    if (useNioChannel || AppData.setting.getSharedIoThread()) channel = new NioTcpChannel(addressPair.first, addressPair.second);
+    else channel = new TcpChannel(addressPair.first, addressPair.second, false);
     connect(keyPair);
     startServerThread.start();
   }
@@ -63,57 +92,111 @@ public class Adb {
 
   private void connect(AdbKeyPair keyPair) throws Exception {
     // 连接ADB并认证
-    channel.write(AdbProtocol.generateConnect());
-    AdbProtocol.AdbMessage message = AdbProtocol.AdbMessage.parseAdbMessage(channel);
+    int maxData = channel instanceof UsbChannel ? AdbProtocol.CONNECT_MAXDATA_USB : AdbProtocol.CONNECT_MAXDATA;
+    writeNow(AdbProtocol.generateConnect(maxData));
+    AdbProtocol.AdbMessage message = AdbProtocol.AdbMessage.parseAdbMessage(channel, maxData);
     if (message.command == AdbProtocol.CMD_AUTH) {
-      channel.write(AdbProtocol.generateAuth(AdbProtocol.AUTH_TYPE_SIGNATURE, keyPair.signPayload(message.payload)));
-      message = AdbProtocol.AdbMessage.parseAdbMessage(channel);
+      writeNow(AdbProtocol.generateAuth(AdbProtocol.AUTH_TYPE_SIGNATURE, keyPair.signPayload(message.payload)));
+      message = AdbProtocol.AdbMessage.parseAdbMessage(channel, maxData);
       if (message.command == AdbProtocol.CMD_AUTH) {
-        channel.write(AdbProtocol.generateAuth(AdbProtocol.AUTH_TYPE_RSA_PUBLIC, keyPair.publicKeyBytes));
-        message = AdbProtocol.AdbMessage.parseAdbMessage(channel);
+        writeNow(AdbProtocol.generateAuth(AdbProtocol.AUTH_TYPE_RSA_PUBLIC, keyPair.publicKeyBytes));
+        message = AdbProtocol.AdbMessage.parseAdbMessage(channel, maxData);
       }
     }
     if (message.command != AdbProtocol.CMD_CNXN) {
       channel.close();
       throw new Exception("ADB connect error");
     }
-    MAX_DATA = message.arg1;
+    // 协商协议版本、最大载荷与features，旧设备不支持时回退
+    version = Math.min(message.arg0, AdbProtocol.CONNECT_VERSION);
+    MAX_DATA = Math.min(message.arg1, maxData);
+    if (channel instanceof UsbChannel) ((UsbChannel) channel).setMaxData(MAX_DATA);
+    HashSet<String> features = AdbProtocol.parseFeatures(message.payload);
+    delayedAck = features.contains(AdbProtocol.FEATURE_DELAYED_ACK);
+    shellV2 = features.contains(AdbProtocol.FEATURE_SHELL_V2);
+    syncLz4 = features.contains(AdbProtocol.FEATURE_SENDRECV_V2) && features.contains(AdbProtocol.FEATURE_SENDRECV_V2_LZ4);
     if (uuid == null) {
       channel.close();
       return;
     }
+    // 交由共享选择器线程收发
+    if (channel instanceof NioTcpChannel && AppData.setting.getSharedIoThread()) {
+      connection = AdbSelector.getInstance().register((NioTcpChannel) channel, MAX_DATA, new AdbSelector.Handler() {
+        @Override
+        public boolean onMessage(AdbProtocol.AdbMessage message) throws Exception {
+          // 目标流接收缓冲已满时不在选择器线程上等待
+          if (message.command == AdbProtocol.CMD_WRTE) {
+            BufferStream bufferStream = connectionStreams.get(message.arg1);
+            if (bufferStream != null && bufferStream.isFull()) return false;
+          }
+          handleMessage(message);
+          return true;
+        }
+
+        @Override
+        public void onClose(Exception e) {
+          handleError(e);
+        }
+      });
+      return;
+    }
     // 启动后台进程
     handleInThread.setPriority(Thread.MAX_PRIORITY);
     handleInThread.start();
     handleOutThread.start();
   }
 
+  // 认证阶段直接写出并立即发送
+  private void writeNow(ByteBuffer byteBuffer) throws IOException, InterruptedException {
+    channel.write(byteBuffer);
+    channel.flush();
+    BufferPool.heap.release(byteBuffer);
+  }
+
   public final void startServer() {
     try {
-      if (BuildConfig.ENABLE_DEBUG_FEATURE || !runAdbCmd("ls /data/local/tmp/easycontrol_*").contains(serverName)) {
+      // 以内容摘要判断远端服务端是否需要更新，只需一条命令
+      if (BuildConfig.ENABLE_DEBUG_FEATURE || !runAdbCmd("md5sum " + serverName + " 2>/dev/null").startsWith(getServerDigest())) {
         runAdbCmd("rm /data/local/tmp/easycontrol_* ");
         pushFile(AppData.main.getResources().openRawResource(R.raw.easycontrol_server), serverName);
       }
       if (serverShell != null) serverShell.close();
-      String cmd = "CLASSPATH=" + serverName + " app_process / top.eiyooooo.easycontrol.server.Server\n";
-      serverShell = getShell();
-      serverShell.write(ByteBuffer.wrap(cmd.getBytes()));
-      waitingData(0);
+      String cmd = "CLASSPATH=" + serverName + " app_process / top.eiyooooo.easycontrol.server.Server";
+      serverShell = startProcess(cmd);
+      // 原始shell需等待命令回显完毕
+      if (!serverShell.isV2() && serverShell.getStdout().awaitReadable(cmd.length() + 1, SERVER_RESPONSE_TIMEOUT)) waitingQuiet();
     } catch (Exception e) {
       L.log(uuid, e);
       PublicTools.logToast(AppData.main.getString(R.string.log_notify));
     }
   }
 
+  // 内置服务端的摘要，只计算一次
+  private static String serverDigest;
+
+  private static synchronized String getServerDigest() throws Exception {
+    if (serverDigest == null) {
+      MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+      try (InputStream inputStream = AppData.main.getResources().openRawResource(R.raw.easycontrol_server)) {
+        byte[] bytes = new byte[16384];
+        int len;
+        while ((len = inputStream.read(bytes)) > 0) messageDigest.update(bytes, 0, len);
+      }
+      StringBuilder sb = new StringBuilder();
+      for (byte b : messageDigest.digest()) sb.append(String.format("%02x", b & 0xFF));
+      serverDigest = sb.toString();
+    }
+    return serverDigest;
+  }
+
   public static String getStringResponseFromServer(Device device, String request, String... args) throws Exception {
     Adb adb = getAdb(device);
     return adb.getStringResponse(request, args);
   }
 
+  // 连接可能已被空闲回收，经AdbManager重新建立，服务端随之重启
   private static Adb getAdb(Device device) throws Exception {
-    String uuid = device.uuid;
-    Adb adb = adbMap.get(uuid);
-    if (adb == null) throw new Exception("adb not start");
+    Adb adb = AdbManager.connect(device, device.isLinkDevice() ? DeviceListAdapter.linkDevices.get(device.uuid) : null);
     if (!adb.startServerThread.isAlive() && (adb.serverShell == null || adb.serverShell.isClosed())) {
       adb.startServerThread = new Thread(adb::startServer);
       adb.startServerThread.start();
@@ -136,83 +219,173 @@ public class Adb {
     sb.deleteCharAt(sb.length() - 1).append("\n");
     String requestCmd = sb.toString();
 
-    serverShell.readAllBytes();
+    BufferStream stdout = serverShell.getStdout();
+    stdout.readAllBytes();
     serverShell.write(ByteBuffer.wrap(requestCmd.getBytes()));
-    serverShell.readByteArray(requestCmd.length() + 1);
-    waitingData(8);
-    int len1 = serverShell.readInt();
-    int len2 = serverShell.readInt();
-    if (len1 == len2) return serverShell.readByteArray(len1).array();
+    // 原始shell会回显输入
+    if (!serverShell.isV2()) stdout.readByteArray(requestCmd.length() + 1);
+    if (!stdout.awaitReadable(8, SERVER_RESPONSE_TIMEOUT)) throw new Exception("server response timeout");
+    int len1 = stdout.readInt();
+    int len2 = stdout.readInt();
+    if (len1 == len2) return stdout.readByteArray(len1).array();
     else throw new Exception("bad data format");
   }
 
-  ArrayList<Integer> dataReceivingList = new ArrayList<>();
-  private void waitingData(int byteNum) throws InterruptedException {
-    dataReceivingList.clear();
-    while (true) {
-      int newSize = serverShell.getSize();
-      if (newSize == 0) continue;
-      if (byteNum > 0 && newSize > byteNum)
-        break;
-      dataReceivingList.add(newSize);
-      if (dataReceivingList.size() > 1) {
-        int oldSize = dataReceivingList.get(dataReceivingList.size() - 2);
-        if (oldSize == newSize) break;
-      }
-      Thread.sleep(400);
-    }
+  private static final long SERVER_RESPONSE_TIMEOUT = 15000;
+  private static final long SERVER_QUIET_TIME = 100;
+
+  // 等待输出停止：一段时间内没有新数据到达即返回
+  private void waitingQuiet() throws InterruptedException, IOException {
+    boolean received;
+    BufferStream stdout = serverShell.getStdout();
+    do received = stdout.awaitReadable(stdout.getSize() + 1, SERVER_QUIET_TIME); while (received);
   }
 
-  private BufferStream open(String destination, boolean canMultipleSend) throws InterruptedException {
-    int localId = localIdPool++ * (canMultipleSend ? 1 : -1);
-    sendBuffer.write(AdbProtocol.generateOpen(localId, destination));
-    BufferStream bufferStream;
-    do {
-      synchronized (this) {
-        wait();
-      }
-      bufferStream = openStreams.get(localId);
-    } while (bufferStream == null);
-    openStreams.remove(localId);
+  private static final long OPEN_TIMEOUT = 10000;
+  private static final long CLOSE_TIMEOUT = 15000;
+  private static final long CMD_TIMEOUT = 60000;
+
+  private BufferStream open(String destination, boolean canMultipleSend) throws InterruptedException, IOException {
+    return open(destination, canMultipleSend, destination.startsWith("sync:") ? PRIORITY_SYNC : PRIORITY_SHELL);
+  }
+
+  private BufferStream open(String destination, boolean canMultipleSend, int priority) throws InterruptedException, IOException {
+    int localId = localIdPool.getAndIncrement() * (canMultipleSend ? 1 : -1);
+    OpenHandle openHandle = new OpenHandle(priority);
+    openHandles.put(localId, openHandle);
+    send(AdbProtocol.generateOpen(localId, delayedAck ? AdbProtocol.DELAYED_ACK_BYTES : 0, destination), priority);
+    boolean isReplied = openHandle.latch.await(OPEN_TIMEOUT, TimeUnit.MILLISECONDS);
+    openHandles.remove(localId);
+    BufferStream bufferStream = openHandle.abandon();
+    if (bufferStream == null) throw new IOException(isReplied ? "connection closed" : "open timeout");
     return bufferStream;
   }
 
-  public final String restartOnTcpip(int port) throws InterruptedException {
+  // 等待对方关闭连接，超时则主动关闭
+  private static void awaitClose(BufferStream bufferStream, long timeout, String error) throws InterruptedException, IOException {
+    if (bufferStream.awaitClose(timeout)) return;
+    bufferStream.close();
+    throw new IOException(error);
+  }
+
+  public final String restartOnTcpip(int port) throws InterruptedException, IOException {
     closing = true;
     BufferStream bufferStream = open("tcpip:" + port, false);
-    do {
-      synchronized (this) {
-        wait();
-      }
-    } while (!bufferStream.isClosed());
+    awaitClose(bufferStream, CLOSE_TIMEOUT, "restart tcpip timeout");
     return new String(bufferStream.readByteArrayBeforeClose().array());
   }
 
+  // sync协议单个DATA块的上限
+  private static final int SYNC_DATA_MAX = 64 * 1024;
+  private static final byte[] SYNC_DATA = "DATA".getBytes();
+
   public final void pushFile(InputStream file, String remotePath) throws Exception {
-    // 打开链接
-    BufferStream bufferStream = open("sync:", false);
-    // 发送信令，建立push通道
-    String sendString = remotePath + ",33206";
-    byte[] bytes = sendString.getBytes();
-    bufferStream.write(AdbProtocol.generateSyncHeader("SEND", sendString.length()));
-    bufferStream.write(ByteBuffer.wrap(bytes));
-    // 发送文件
-    byte[] byteArray = new byte[10240 - 8];
-    int len = file.read(byteArray, 0, byteArray.length);
-    do {
-      bufferStream.write(AdbProtocol.generateSyncHeader("DATA", len));
-      bufferStream.write(ByteBuffer.wrap(byteArray, 0, len));
-      len = file.read(byteArray, 0, byteArray.length);
-    } while (len > 0);
+    long startTime = System.currentTimeMillis();
+    // 打开链接，启用delayed_ack时在发送额度内连续发送，否则每块等待对方确认
+    BufferStream bufferStream = open("sync:", delayedAck);
+    // 发送信令，建立push通道，支持时使用压缩的sync v2
+    SyncDataWriter writer = new SyncDataWriter(bufferStream);
+    if (syncLz4) {
+      bufferStream.write(AdbProtocol.generateSendV2(remotePath, 33206, AdbProtocol.SYNC_FLAG_LZ4));
+      pushLz4(file, writer);
+    } else {
+      String sendString = remotePath + ",33206";
+      byte[] bytes = sendString.getBytes();
+      bufferStream.write(AdbProtocol.generateSyncHeader("SEND", sendString.length()));
+      bufferStream.write(ByteBuffer.wrap(bytes));
+      pushPlain(file, writer);
+    }
     file.close();
     // 传输完成，为了方便，文件日期定为2024.1.1 0:0
     bufferStream.write(AdbProtocol.generateSyncHeader("DONE", 1704038400));
     bufferStream.write(AdbProtocol.generateSyncHeader("QUIT", 0));
-    do {
-      synchronized (this) {
-        wait();
+    awaitClose(bufferStream, CLOSE_TIMEOUT, "push timeout");
+    L.log(uuid, "push " + remotePath + (syncLz4 ? " (lz4)" : "") + ": " + writer.fileBytes + " bytes, " + writer.wireBytes + " bytes on wire, " + (System.currentTimeMillis() - startTime) + " ms");
+  }
+
+  // 文件内容直接读入待发送的块，每块装入尽量多的DATA，恰好占满一个WRTE报文
+  private void pushPlain(InputStream file, SyncDataWriter writer) throws Exception {
+    boolean isEnd = false;
+    while (!isEnd) {
+      ByteBuffer chunk = writer.chunk();
+      while (!isEnd && chunk.remaining() > 8) {
+        int want = Math.min(SYNC_DATA_MAX, chunk.remaining() - 8);
+        int len = readFully(file, chunk.array(), chunk.arrayOffset() + chunk.position() + 8, want);
+        isEnd = len < want;
+        if (len == 0) break;
+        chunk.put(SYNC_DATA).putInt(len);
+        chunk.position(chunk.position() + len);
+        writer.fileBytes += len;
+        writer.wireBytes += 8 + len;
+      }
+      writer.flush();
+    }
+  }
+
+  // 每次读取一个64KB块压缩，压缩后的LZ4帧按DATA记录写出
+  private void pushLz4(InputStream file, SyncDataWriter writer) throws Exception {
+    byte[] block = new byte[Lz4.BLOCK_SIZE];
+    byte[] out = new byte[Lz4.FRAME_HEADER_LENGTH + Lz4.maxBlockLength(Lz4.BLOCK_SIZE)];
+    int[] hashTable = Lz4.newHashTable();
+    writer.write(out, Lz4.writeFrameHeader(out, 0));
+    int len;
+    while ((len = readFully(file, block, 0, block.length)) > 0) {
+      writer.write(out, Lz4.writeBlock(block, 0, len, out, 0, hashTable));
+      writer.fileBytes += len;
+    }
+    writer.write(out, Lz4.writeEndMark(out, 0));
+    writer.flush();
+  }
+
+  // 将数据装入WRTE大小的块，按DATA记录写入sync连接
+  private final class SyncDataWriter {
+    private final BufferStream bufferStream;
+    private final int chunkSize = MAX_DATA - 128;
+    private ByteBuffer chunk;
+    private long fileBytes = 0;
+    private long wireBytes = 0;
+
+    private SyncDataWriter(BufferStream bufferStream) {
+      this.bufferStream = bufferStream;
+    }
+
+    private ByteBuffer chunk() {
+      if (chunk == null) chunk = BufferPool.heap.acquire(chunkSize).order(ByteOrder.LITTLE_ENDIAN);
+      return chunk;
+    }
+
+    private void write(byte[] bytes, int len) throws Exception {
+      int offset = 0;
+      while (offset < len) {
+        ByteBuffer chunk = chunk();
+        if (chunk.remaining() <= 8) {
+          flush();
+          continue;
+        }
+        int n = Math.min(Math.min(SYNC_DATA_MAX, chunk.remaining() - 8), len - offset);
+        chunk.put(SYNC_DATA).putInt(n).put(bytes, offset, n);
+        offset += n;
+        wireBytes += 8 + n;
       }
-    } while (!bufferStream.isClosed());
+    }
+
+    private void flush() throws Exception {
+      if (chunk == null) return;
+      chunk.flip();
+      if (chunk.hasRemaining()) bufferStream.write(chunk);
+      else BufferPool.heap.release(chunk);
+      chunk = null;
+    }
+  }
+
+  private static int readFully(InputStream inputStream, byte[] bytes, int offset, int len) throws IOException {
+    int read = 0;
+    while (read < len) {
+      int n = inputStream.read(bytes, offset + read, len - read);
+      if (n < 0) break;
+      read += n;
+    }
+    return read;
   }
 
   public static Bitmap getRemoteIconByDevice(Device device, String packageName) throws Exception {
@@ -223,61 +396,139 @@ public class Adb {
   public final Bitmap getRemoteIcon(String packageName) throws Exception {
     String path = getStringResponse("getIcon", "package=" + packageName);
     if (!path.endsWith(".png")) throw new Exception("get icon fail");
-    BufferStream bufferStream = open("sync:", false);
-    byte[] bytes = path.getBytes();
-    bufferStream.write(AdbProtocol.generateSyncHeader("RECV", bytes.length));
-    bufferStream.write(ByteBuffer.wrap(bytes));
     ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-    String check1 = new String(bufferStream.readByteArray(4).array());
-    if ("FAIL".equals(check1)) throw new Exception("get icon fail");
-    int len1 = bufferStream.readByteArray(4).getInt() * 256;
-    int size = bufferStream.getSize();
-    if (size > len1) size = len1;
-    int position = 0;
-    do {
-      byteArrayOutputStream.write(bufferStream.readByteArray(size).array(), 0, size);
-      position += size;
-      if (position == len1) {
-        String check2 = new String(bufferStream.readByteArray(4).array());
-        if (!"FAIL".equals(check2)) {
-          len1 = bufferStream.readByteArray(4).getInt() * 256;
-          if (len1 != 65536) {
-            int len2 = bufferStream.getSize() - 8;
-            byteArrayOutputStream.write(bufferStream.readByteArray(len2).array(), 0, len2);
-            bufferStream.readByteArray(4);
-          }
-          position = 0;
-        }
-      } else {
-        if (bufferStream.getSize() == 0) Thread.sleep(120);
-        int len3 = bufferStream.getSize();
-        if (position + len3 > len1) len3 = len1 - position;
-        size = len3;
-      }
-    } while (bufferStream.getSize() > 0);
-    bufferStream.write(AdbProtocol.generateSyncHeader("QUIT", 0));
-    byteArrayOutputStream.flush();
-    do {
-      synchronized (this) {
-        wait();
-      }
-    } while (!bufferStream.isClosed());
+    pull(path, byteArrayOutputStream);
     runAdbCmd("rm " + path);
     return BitmapFactory.decodeByteArray(byteArrayOutputStream.toByteArray(), 0, byteArrayOutputStream.size());
   }
 
-  public final String runAdbCmd(String cmd) throws InterruptedException {
-    BufferStream bufferStream = open("shell:" + cmd, true);
-    do {
-      synchronized (this) {
-        wait();
+  // 拉取远端文件，边接收边写入sink，返回文件字节数
+  public final long pull(String remotePath, OutputStream sink) throws Exception {
+    return pull(remotePath, sink, null);
+  }
+
+  // 拉取远端文件到sink的剩余空间，空间不足时抛出异常
+  public final long pull(String remotePath, ByteBuffer sink) throws Exception {
+    return pull(remotePath, new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
       }
-    } while (!bufferStream.isClosed());
-    return new String(bufferStream.readByteArrayBeforeClose().array());
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        if (len > sink.remaining()) throw new IOException("buffer overflow");
+        sink.put(b, off, len);
+      }
+    }, sink);
   }
 
-  public BufferStream getShell() throws InterruptedException {
-    return open("shell:", true);
+  // 支持时使用压缩的sync v2；未压缩且目标为ByteBuffer时，数据直接从接收缓冲拷入目标，不经过中间数组
+  // 均以拷贝方式取出，读完的数据块随即归还缓冲池
+  private long pull(String remotePath, OutputStream outputStream, ByteBuffer byteBuffer) throws Exception {
+    long startTime = System.currentTimeMillis();
+    BufferStream bufferStream = open("sync:", false);
+    Lz4.Decoder decoder = null;
+    if (syncLz4) {
+      decoder = new Lz4.Decoder(outputStream);
+      bufferStream.write(AdbProtocol.generateRecvV2(remotePath, AdbProtocol.SYNC_FLAG_LZ4));
+    } else {
+      byte[] bytes = remotePath.getBytes();
+      bufferStream.write(AdbProtocol.generateSyncHeader("RECV", bytes.length));
+      bufferStream.write(ByteBuffer.wrap(bytes));
+    }
+    long fileBytes = 0;
+    long wireBytes = 0;
+    ByteBuffer chunk = null;
+    // 回复为若干DATA记录，以DONE结束，失败时为FAIL加错误信息
+    while (true) {
+      int id = bufferStream.readInt();
+      int len = Integer.reverseBytes(bufferStream.readInt());
+      if (id == AdbProtocol.SYNC_DONE) break;
+      if (id == AdbProtocol.SYNC_FAIL) {
+        String error = new String(bufferStream.readByteArray(len).array(), StandardCharsets.UTF_8);
+        bufferStream.close();
+        throw new IOException("pull " + remotePath + " fail: " + error);
+      }
+      if (id != AdbProtocol.SYNC_DATA) {
+        bufferStream.close();
+        throw new IOException("pull " + remotePath + " fail: unexpected response");
+      }
+      wireBytes += 8 + len;
+      if (decoder == null && byteBuffer != null) {
+        if (len > byteBuffer.remaining()) {
+          bufferStream.close();
+          throw new IOException("buffer overflow");
+        }
+        bufferStream.transferTo(byteBuffer, len);
+        fileBytes += len;
+        continue;
+      }
+      if (chunk == null) chunk = BufferPool.heap.acquire(SYNC_DATA_MAX);
+      while (len > 0) {
+        int n = Math.min(len, chunk.capacity());
+        chunk.clear();
+        chunk.limit(n);
+        bufferStream.transferTo(chunk, n);
+        chunk.flip();
+        if (decoder != null) decoder.feed(chunk);
+        else {
+          outputStream.write(chunk.array(), chunk.arrayOffset(), n);
+          fileBytes += n;
+        }
+        len -= n;
+      }
+    }
+    BufferPool.heap.release(chunk);
+    if (decoder != null) decoder.finish();
+    bufferStream.write(AdbProtocol.generateSyncHeader("QUIT", 0));
+    awaitClose(bufferStream, CLOSE_TIMEOUT, "pull timeout");
+    if (decoder != null) fileBytes = decoder.getDecodedBytes();
+    L.log(uuid, "pull " + remotePath + (decoder != null ? " (lz4)" : "") + ": " + fileBytes + " bytes, " + wireBytes + " bytes on wire, " + (System.currentTimeMillis() - startTime) + " ms");
+    return fileBytes;
+  }
+
+  public final String runAdbCmd(String cmd) throws InterruptedException, IOException {
+    return runShellCmd(cmd).getOutput();
+  }
+
+  // 执行命令并等待结束，shell v2下收到退出码即返回，不必等待连接关闭
+  public final AdbShell.Result runShellCmd(String cmd) throws InterruptedException, IOException {
+    AdbShell shell = openShell(cmd, true);
+    if (!shell.awaitExit(CMD_TIMEOUT)) {
+      shell.close();
+      throw new IOException("adb command timeout");
+    }
+    AdbShell.Result result = shell.getResult();
+    shell.close();
+    return result;
+  }
+
+  public AdbShell getShell() throws InterruptedException, IOException {
+    return openShell("");
+  }
+
+  public AdbShell openShell(String cmd) throws InterruptedException, IOException {
+    return openShell(cmd, false);
+  }
+
+  // collect为true时输出由后台线程全部收集，用于执行至结束的命令
+  private AdbShell openShell(String cmd, boolean collect) throws InterruptedException, IOException {
+    BufferStream bufferStream = open((shellV2 ? "shell,v2,raw:" : "shell:") + cmd, true);
+    try {
+      return new AdbShell(bufferStream, shellV2, collect);
+    } catch (Exception e) {
+      bufferStream.close();
+      throw new IOException(e);
+    }
+  }
+
+  // 启动长期运行的命令：shell v2直接执行，输出中没有回显；原始shell则在交互shell中输入命令
+  public AdbShell startProcess(String cmd) throws Exception {
+    if (shellV2) return openShell(cmd);
+    AdbShell shell = getShell();
+    shell.write(ByteBuffer.wrap((cmd + "\n").getBytes()));
+    return shell;
   }
 
   public BufferStream tcpForward(int port) throws IOException, InterruptedException {
@@ -286,102 +537,209 @@ public class Adb {
     return bufferStream;
   }
 
-  public BufferStream localSocketForward(String socketName) throws IOException, InterruptedException {
-    BufferStream bufferStream = open("localabstract:" + socketName, true);
+  public BufferStream localSocketForward(String socketName, int priority) throws IOException, InterruptedException {
+    BufferStream bufferStream = open("localabstract:" + socketName, true, priority);
     if (bufferStream.isClosed()) throw new IOException("error forward");
     return bufferStream;
   }
 
   private void handleIn() {
     try {
-      while (!Thread.interrupted()) {
-        AdbProtocol.AdbMessage message = AdbProtocol.AdbMessage.parseAdbMessage(channel);
-        BufferStream bufferStream = connectionStreams.get(message.arg1);
-        boolean isNeedNotify = bufferStream == null;
-        // 新连接
-        if (isNeedNotify) bufferStream = createNewStream(message.arg1, message.arg0, message.arg1 > 0);
-        switch (message.command) {
-          case AdbProtocol.CMD_OKAY:
-            bufferStream.setCanWrite(true);
-            break;
-          case AdbProtocol.CMD_WRTE:
-            bufferStream.pushSource(message.payload);
-            sendBuffer.write(AdbProtocol.generateOkay(message.arg1, message.arg0));
-            break;
-          case AdbProtocol.CMD_CLSE:
-            bufferStream.close();
-            isNeedNotify = true;
-            break;
-        }
-        if (isNeedNotify) {
-          synchronized (this) {
-            notifyAll();
-          }
-        }
-      }
+      while (!Thread.interrupted()) handleMessage(AdbProtocol.AdbMessage.parseAdbMessage(channel, MAX_DATA));
     } catch (Exception e) {
-      if (!closing) {
-        L.log(uuid, e);
-        PublicTools.logToast(AppData.main.getString(R.string.log_notify));
-      }
-      close();
+      handleError(e);
     }
   }
 
+  // 由handleIn线程或共享选择器线程调用，不得阻塞
+  private void handleMessage(AdbProtocol.AdbMessage message) throws Exception {
+    BufferStream bufferStream = connectionStreams.get(message.arg1);
+    boolean isNew = bufferStream == null;
+    OpenHandle openHandle = null;
+    // 新连接，沿用open时指定的优先级
+    if (isNew) {
+      openHandle = openHandles.remove(message.arg1);
+      bufferStream = createNewStream(message.arg1, message.arg0, message.arg1 > 0, openHandle == null ? PRIORITY_SHELL : openHandle.priority);
+    }
+    switch (message.command) {
+      case AdbProtocol.CMD_OKAY:
+        // delayed_ack下OKAY携带对方新确认的字节数，即新增的发送额度
+        if (delayedAck && message.payloadLength == 4) {
+          bufferStream.addSendCredit(message.payload.order(ByteOrder.LITTLE_ENDIAN).getInt(message.payload.position()));
+          BufferPool.recycle(message.payload);
+        }
+        bufferStream.setCanWrite(true);
+        break;
+      case AdbProtocol.CMD_WRTE:
+        bufferStream.pushSource(message.payload);
+        bufferStream.flush();
+        break;
+      case AdbProtocol.CMD_CLSE:
+        bufferStream.close();
+        break;
+    }
+    // 新连接交给等待中的open，无人等待（已超时）则关闭
+    if (isNew && (openHandle == null || !openHandle.complete(bufferStream))) bufferStream.close();
+  }
+
+  private static final class OpenHandle {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final int priority;
+    private BufferStream bufferStream;
+    private boolean isAbandoned = false;
+
+    private OpenHandle(int priority) {
+      this.priority = priority;
+    }
+
+    // 调用方已放弃等待时返回false
+    private synchronized boolean complete(BufferStream bufferStream) {
+      if (isAbandoned) return false;
+      this.bufferStream = bufferStream;
+      latch.countDown();
+      return true;
+    }
+
+    // 调用方结束等待，之后到达的回复由handleMessage关闭
+    private synchronized BufferStream abandon() {
+      isAbandoned = true;
+      return bufferStream;
+    }
+  }
+
+  private void handleError(Exception e) {
+    if (!closing) {
+      L.log(uuid, e);
+      PublicTools.logToast(AppData.main.getString(R.string.log_notify));
+    }
+    close();
+  }
+
   private void handleOut() {
     try {
       while (!Thread.interrupted()) {
-        channel.write(sendBuffer.readNext());
-        if (!sendBuffer.isEmpty()) channel.write(sendBuffer.read(sendBuffer.getSize()));
+        // 加权轮询：每轮按优先级从高到低各取至多权重个报文，凑成一批聚集写入
+        int count = 0;
+        int bytes = 0;
+        boolean hasMore = true;
+        while (hasMore && count < sendBatch.length && bytes < MAX_BATCH_BYTES) {
+          hasMore = false;
+          for (int priority = 0; priority < sendBuffers.length; priority++) {
+            Buffer sendBuffer = sendBuffers[priority];
+            for (int n = 0; n < SEND_WEIGHTS[priority] && !sendBuffer.isEmpty() && count < sendBatch.length && bytes < MAX_BATCH_BYTES; n++) {
+              ByteBuffer message = sendBuffer.readNext();
+              bytes += message.remaining();
+              sendBatch[count++] = message;
+            }
+            if (!sendBuffer.isEmpty()) hasMore = true;
+          }
+        }
+        // 全部为空时等待send唤醒
+        if (count == 0) {
+          LockSupport.park(this);
+          continue;
+        }
+        channel.write(sendBatch, 0, count);
+        for (int i = 0; i < count; i++) {
+          BufferPool.heap.release(sendBatch[i]);
+          sendBatch[i] = null;
+        }
         channel.flush();
       }
     } catch (Exception e) {
-      if (!closing) {
-        L.log(uuid, e);
-        PublicTools.logToast(AppData.main.getString(R.string.log_notify));
-      }
-      close();
+      handleError(e);
+    }
+  }
+
+  // 各连接与handleIn可同时写入发送缓冲，由缓冲内部串行
+  private void send(ByteBuffer byteBuffer, int priority) {
+    if (connection != null) {
+      connection.send(byteBuffer, priority);
+      return;
     }
+    // 连接已关闭，报文不再发送
+    if (!sendBuffers[priority].write(byteBuffer)) BufferPool.recycle(byteBuffer);
+    LockSupport.unpark(handleOutThread);
   }
 
-  private BufferStream createNewStream(int localId, int remoteId, boolean canMultipleSend) throws Exception {
-    return new BufferStream(false, canMultipleSend, new BufferStream.UnderlySocketFunction() {
+  private BufferStream createNewStream(int localId, int remoteId, boolean canMultipleSend, int priority) throws Exception {
+    BufferStream stream = new BufferStream(false, canMultipleSend, new BufferStream.UnderlySocketFunction() {
       @Override
       public void connect(BufferStream bufferStream) {
         connectionStreams.put(localId, bufferStream);
-        openStreams.put(localId, bufferStream);
       }
 
       @Override
-      public void write(BufferStream bufferStream, ByteBuffer buffer) {
-        while (buffer.hasRemaining()) {
-          byte[] byteArray = new byte[Math.min(MAX_DATA - 128, buffer.remaining())];
-          buffer.get(byteArray);
-          sendBuffer.write(AdbProtocol.generateWrite(localId, remoteId, byteArray));
+      public void write(BufferStream bufferStream, ByteBuffer[] buffers, int offset, int length) {
+        int remaining = 0;
+        for (int i = offset; i < offset + length; i++) remaining += buffers[i].remaining();
+        // 每个报文从数据块中直接取数，可跨越多个数据块
+        int index = offset;
+        while (remaining > 0) {
+          while (!buffers[index].hasRemaining()) index++;
+          int len = Math.min(MAX_DATA - 128, remaining);
+          send(AdbProtocol.generateWrite(localId, remoteId, buffers, index, len, AdbProtocol.needChecksum(version)), priority);
+          remaining -= len;
         }
       }
 
       @Override
       public void flush(BufferStream bufferStream) {
-        sendBuffer.write(AdbProtocol.generateOkay(localId, remoteId));
+        if (!delayedAck) {
+          send(AdbProtocol.generateOkay(localId, remoteId), priority);
+          return;
+        }
+        // 一次确认自上次回复以来收到的全部字节
+        int ackedBytes = bufferStream.takeUnackedBytes();
+        if (ackedBytes > 0) send(AdbProtocol.generateOkay(localId, remoteId, ackedBytes), priority);
       }
 
       @Override
       public void close(BufferStream bufferStream) {
         connectionStreams.remove(localId);
-        sendBuffer.write(AdbProtocol.generateClose(localId, remoteId));
+        send(AdbProtocol.generateClose(localId, remoteId), priority);
       }
     });
+    // delayed_ack下按对方窗口发送，首个OKAY携带初始额度
+    if (delayedAck) stream.enableSendCredit();
+    return stream;
   }
 
   boolean closing = false;
+  private volatile boolean isClosed = false;
+
+  public boolean isClosed() {
+    return isClosed;
+  }
+
+  // 打开中的流数量，不含常驻的服务端shell
+  int getActiveStreamCount() {
+    int count = connectionStreams.size();
+    if (serverShell != null && !serverShell.isClosed()) count--;
+    return Math.max(count, 0);
+  }
+
+  // 轻量的存活检测：执行一个立即结束的命令，超时或出错视为失效
+  boolean ping(long timeout) {
+    try {
+      AdbShell shell = openShell("true");
+      boolean exited = shell.awaitExit(timeout);
+      shell.close();
+      return exited;
+    } catch (Exception ignored) {
+      return false;
+    }
+  }
 
   public void close() {
-    adbMap.remove(uuid);
+    AdbManager.remove(uuid, this);
+    isClosed = true;
     closing = true;
     for (Object bufferStream : connectionStreams.values().toArray()) ((BufferStream) bufferStream).close();
+    for (OpenHandle openHandle : openHandles.values()) openHandle.complete(null);
     handleInThread.interrupt();
     handleOutThread.interrupt();
+    if (connection != null) connection.close();
     channel.close();
   }
 
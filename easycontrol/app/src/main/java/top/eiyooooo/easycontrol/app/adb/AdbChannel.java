@@ -6,6 +6,9 @@ import java.nio.ByteBuffer;
 public interface AdbChannel {
   void write(ByteBuffer data) throws IOException, InterruptedException;
 
+  // 聚集写入，依次写出data[offset]到data[offset + length - 1]
+  void write(ByteBuffer[] data, int offset, int length) throws IOException, InterruptedException;
+
   void flush() throws IOException;
 
   ByteBuffer read(int size) throws IOException, InterruptedException;
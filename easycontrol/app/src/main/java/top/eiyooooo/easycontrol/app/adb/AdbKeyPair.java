@@ -31,7 +31,11 @@ public class AdbKeyPair {
     Cipher cipher = Cipher.getInstance("RSA/ECB/NoPadding");
     cipher.init(Cipher.ENCRYPT_MODE, privateKey);
     cipher.update(SIGNATURE_PADDING);
-    return cipher.doFinal(payload.array());
+    if (payload.hasArray()) return cipher.doFinal(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+    // 堆外缓冲（NIO通道）先拷出
+    byte[] bytes = new byte[payload.remaining()];
+    payload.duplicate().get(bytes);
+    return cipher.doFinal(bytes);
   }
 
   public static void setAdbBase64(AdbBase64 adbBase64) {
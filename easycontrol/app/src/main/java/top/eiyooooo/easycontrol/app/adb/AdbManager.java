@@ -0,0 +1,196 @@
+package top.eiyooooo.easycontrol.app.adb;
+
+import android.hardware.usb.UsbDevice;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import top.eiyooooo.easycontrol.app.entity.AppData;
+import top.eiyooooo.easycontrol.app.entity.Device;
+import top.eiyooooo.easycontrol.app.helper.L;
+
+// 管理所有Adb连接的生命周期：同一设备的并发连接合并为一次，后台定期检测存活并回收长时间空闲的连接
+public final class AdbManager {
+  private static final ConcurrentHashMap<String, Adb> adbMap = new ConcurrentHashMap<>();
+  // 正在建立的连接，同一设备的后来者等待其结果
+  private static final ConcurrentHashMap<String, PendingConnect> connecting = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, ConnectStatistics> statistics = new ConcurrentHashMap<>();
+  // 空闲起始时间，仅由检测线程读写
+  private static final ConcurrentHashMap<String, Long> idleSince = new ConcurrentHashMap<>();
+
+  private static final long CHECK_INTERVAL = 30000;
+  private static final long PING_TIMEOUT = 5000;
+  private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+  // 等待他人正在建立的连接的上限，超时视为该次连接失败，不再让后来者等待它
+  private static final long JOIN_TIMEOUT = 10000;
+  private static Thread checkThread;
+
+  private AdbManager() {
+  }
+
+  public static Adb get(String uuid) {
+    return adbMap.get(uuid);
+  }
+
+  public static boolean contains(String uuid) {
+    return adbMap.containsKey(uuid);
+  }
+
+  // 获取设备的连接，不存在时建立；usbDevice为null时使用无线连接
+  public static Adb connect(Device device, UsbDevice usbDevice) throws Exception {
+    String uuid = device.uuid;
+    while (true) {
+      Adb adb = adbMap.get(uuid);
+      if (adb != null && !adb.isClosed()) return adb;
+      PendingConnect pendingConnect = new PendingConnect();
+      PendingConnect existing = connecting.putIfAbsent(uuid, pendingConnect);
+      if (existing != null) {
+        getStatistics(uuid).onJoined();
+        try {
+          adb = existing.await(JOIN_TIMEOUT);
+        } catch (Exception e) {
+          connecting.remove(uuid, existing);
+          throw e;
+        }
+        if (!adb.isClosed()) return adb;
+        continue;
+      }
+      long startTime = System.currentTimeMillis();
+      try {
+        adb = usbDevice == null ? new Adb(uuid, device.address, device.useNioChannel, AppData.keyPair) : new Adb(uuid, usbDevice, AppData.keyPair);
+        adbMap.put(uuid, adb);
+        getStatistics(uuid).onConnect(System.currentTimeMillis() - startTime);
+        L.log(uuid, "adb connect: " + (System.currentTimeMillis() - startTime) + " ms");
+        pendingConnect.complete(adb, null);
+        startCheck();
+        return adb;
+      } catch (Exception e) {
+        getStatistics(uuid).onFailed();
+        pendingConnect.complete(null, e);
+        throw e;
+      } finally {
+        connecting.remove(uuid, pendingConnect);
+      }
+    }
+  }
+
+  public static void close(String uuid) {
+    Adb adb = adbMap.remove(uuid);
+    if (adb != null) adb.close();
+  }
+
+  // 由Adb关闭时调用，只移除自身，不影响已重新建立的连接
+  static void remove(String uuid, Adb adb) {
+    if (uuid != null) adbMap.remove(uuid, adb);
+  }
+
+  // 连接耗时统计，未连接过时返回null
+  public static ConnectStatistics getConnectStatistics(String uuid) {
+    return statistics.get(uuid);
+  }
+
+  private static ConnectStatistics getStatistics(String uuid) {
+    ConnectStatistics connectStatistics = statistics.get(uuid);
+    if (connectStatistics == null) {
+      statistics.putIfAbsent(uuid, new ConnectStatistics());
+      connectStatistics = statistics.get(uuid);
+    }
+    return connectStatistics;
+  }
+
+  private static synchronized void startCheck() {
+    if (checkThread != null) return;
+    checkThread = new Thread(AdbManager::check, "AdbManager");
+    checkThread.setDaemon(true);
+    checkThread.start();
+  }
+
+  // 没有活动流的连接：先做存活检测，失效即关闭；空闲超过IDLE_TIMEOUT则回收
+  // 回收会一并结束常驻的服务端，之后的请求经connect重新连接并重启服务端
+  private static void check() {
+    while (true) {
+      try {
+        Thread.sleep(CHECK_INTERVAL);
+      } catch (InterruptedException ignored) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      for (String uuid : adbMap.keySet()) {
+        Adb adb = adbMap.get(uuid);
+        if (adb == null) continue;
+        if (adb.getActiveStreamCount() > 0) {
+          idleSince.remove(uuid);
+          continue;
+        }
+        Long since = idleSince.get(uuid);
+        if (since == null) idleSince.put(uuid, now);
+        else if (now - since > IDLE_TIMEOUT) {
+          L.log(uuid, "adb idle, closed");
+          idleSince.remove(uuid);
+          adb.close();
+          continue;
+        }
+        if (!adb.ping(PING_TIMEOUT)) {
+          L.log(uuid, "adb ping failed, closed");
+          idleSince.remove(uuid);
+          adb.close();
+        }
+      }
+    }
+  }
+
+  private static final class PendingConnect {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private Adb adb;
+    private Exception exception;
+
+    // 只有第一次完成有效，超时后连接方的结果不再影响等待者
+    private synchronized void complete(Adb adb, Exception exception) {
+      if (latch.getCount() == 0) return;
+      this.adb = adb;
+      this.exception = exception;
+      latch.countDown();
+    }
+
+    private Adb await(long timeout) throws Exception {
+      if (!latch.await(timeout, TimeUnit.MILLISECONDS)) complete(null, new Exception("adb connect timeout"));
+      synchronized (this) {
+        if (exception != null) throw exception;
+        return adb;
+      }
+    }
+  }
+
+  public static final class ConnectStatistics {
+    public volatile int connected;
+    public volatile int failed;
+    // 等待他人正在建立的连接而未重复连接的次数
+    public volatile int joined;
+    public volatile long lastMs;
+    public volatile long totalMs;
+
+    private synchronized void onConnect(long ms) {
+      connected++;
+      lastMs = ms;
+      totalMs += ms;
+    }
+
+    private synchronized void onFailed() {
+      failed++;
+    }
+
+    private synchronized void onJoined() {
+      joined++;
+    }
+
+    public long getAverageMs() {
+      return connected == 0 ? 0 : totalMs / connected;
+    }
+
+    @Override
+    public String toString() {
+      return "connected=" + connected + ", failed=" + failed + ", joined=" + joined + ", last=" + lastMs + "ms, average=" + getAverageMs() + "ms";
+    }
+  }
+}
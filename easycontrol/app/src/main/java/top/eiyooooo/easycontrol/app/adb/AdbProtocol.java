@@ -4,6 +4,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+
+import top.eiyooooo.easycontrol.app.buffer.BufferPool;
 
 public class AdbProtocol {
   public static final int ADB_HEADER_LENGTH = 24;
@@ -19,30 +22,85 @@ public class AdbProtocol {
   public static final int CMD_CLSE = 0x45534c43;
   public static final int CMD_WRTE = 0x45545257;
 
-  public static final int CONNECT_VERSION = 0x01000000;
-  public static final int CONNECT_MAXDATA = 15 * 1024;
+  public static final int CONNECT_VERSION = 0x01000001;
+  // 旧版本协议，对方回复旧版本时按旧版本通信
+  public static final int CONNECT_VERSION_MIN = 0x01000000;
+  public static final int CONNECT_MAXDATA = 256 * 1024;
+  // 旧版Android的USB单次传输不能超过16KB，有线连接维持原有大小
+  public static final int CONNECT_MAXDATA_USB = 15 * 1024;
+
+  // delayed_ack：OPEN携带本端接收窗口，OKAY携带已确认的字节数，发送方在窗口内连续发送而不必逐个等待OKAY
+  public static final String FEATURE_DELAYED_ACK = "delayed_ack";
+  public static final int DELAYED_ACK_BYTES = 2 * 1024 * 1024;
+
+  // sync v2：SND2/RCV2请求可携带压缩标志，DATA中传输的是压缩后的数据流
+  public static final String FEATURE_SENDRECV_V2 = "sendrecv_v2";
+  public static final String FEATURE_SENDRECV_V2_LZ4 = "sendrecv_v2_lz4";
+  public static final int SYNC_FLAG_LZ4 = 2;
 
-  public static final byte[] CONNECT_PAYLOAD = "host::\0".getBytes();
+  // shell v2：数据按报文分为stdin、stdout、stderr与退出码
+  public static final String FEATURE_SHELL_V2 = "shell_v2";
+  public static final int SHELL_STDIN = 0;
+  public static final int SHELL_STDOUT = 1;
+  public static final int SHELL_STDERR = 2;
+  public static final int SHELL_EXIT = 3;
 
-  public static ByteBuffer generateConnect() {
-    return generateMessage(CMD_CNXN, CONNECT_VERSION, CONNECT_MAXDATA, CONNECT_PAYLOAD);
+  // sync回复的ID，按大端读出的4字节
+  public static final int SYNC_DATA = 0x44415441;
+  public static final int SYNC_DONE = 0x444f4e45;
+  public static final int SYNC_FAIL = 0x4641494c;
+
+  public static final byte[] CONNECT_PAYLOAD = ("host::features=" + FEATURE_DELAYED_ACK + "," + FEATURE_SHELL_V2 + "," + FEATURE_SENDRECV_V2 + "," + FEATURE_SENDRECV_V2_LZ4 + "\0").getBytes();
+
+  public static ByteBuffer generateConnect(int maxData) {
+    return generateMessage(CMD_CNXN, CONNECT_VERSION, maxData, CONNECT_PAYLOAD);
   }
 
   public static ByteBuffer generateAuth(int type, byte[] data) {
     return generateMessage(CMD_AUTH, type, 0, data);
   }
 
-  public static ByteBuffer generateOpen(int localId, String dest) {
+  // 未启用delayed_ack时ackBytes必须为0
+  public static ByteBuffer generateOpen(int localId, int ackBytes, String dest) {
     ByteBuffer bbuf = ByteBuffer.allocate(dest.length() + 1);
     bbuf.put(dest.getBytes(StandardCharsets.UTF_8));
     bbuf.put((byte) 0);
-    return generateMessage(CMD_OPEN, localId, 0, bbuf.array());
+    return generateMessage(CMD_OPEN, localId, ackBytes, bbuf.array());
   }
 
   public static ByteBuffer generateWrite(int localId, int remoteId, byte[] data) {
     return generateMessage(CMD_WRTE, localId, remoteId, data);
   }
 
+  // 0x01000001及以上版本不再校验载荷校验和，可以不计算
+  public static boolean needChecksum(int version) {
+    return version < CONNECT_VERSION;
+  }
+
+  // 从data[offset]开始的若干数据块中依次取出len字节作为载荷，不经过中间数组
+  public static ByteBuffer generateWrite(int localId, int remoteId, ByteBuffer[] data, int offset, int len, boolean checksum) {
+    ByteBuffer buffer = BufferPool.heap.acquire(ADB_HEADER_LENGTH + len).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(CMD_WRTE);
+    buffer.putInt(localId);
+    buffer.putInt(remoteId);
+    buffer.putInt(len);
+    buffer.putInt(0);
+    buffer.putInt(~CMD_WRTE);
+    for (int i = offset; buffer.hasRemaining(); i++) {
+      ByteBuffer src = data[i];
+      if (src.remaining() <= buffer.remaining()) buffer.put(src);
+      else {
+        int oldLimit = src.limit();
+        src.limit(src.position() + buffer.remaining());
+        buffer.put(src);
+        src.limit(oldLimit);
+      }
+    }
+    if (checksum) buffer.putInt(16, payloadChecksum(buffer, ADB_HEADER_LENGTH, len));
+    buffer.flip();
+    return buffer;
+  }
+
   public static ByteBuffer generateClose(int localId, int remoteId) {
     return generateMessage(CMD_CLSE, localId, remoteId, null);
   }
@@ -51,10 +109,42 @@ public class AdbProtocol {
     return generateMessage(CMD_OKAY, localId, remoteId, null);
   }
 
+  // delayed_ack下的OKAY，载荷为新确认的字节数
+  public static ByteBuffer generateOkay(int localId, int remoteId, int ackedBytes) {
+    ByteBuffer buffer = BufferPool.heap.acquire(ADB_HEADER_LENGTH + 4).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(CMD_OKAY);
+    buffer.putInt(localId);
+    buffer.putInt(remoteId);
+    buffer.putInt(4);
+    buffer.putInt(0);
+    buffer.putInt(~CMD_OKAY);
+    buffer.putInt(ackedBytes);
+    buffer.putInt(16, payloadChecksum(buffer, ADB_HEADER_LENGTH, 4));
+    buffer.flip();
+    return buffer;
+  }
+
+  // 解析CNXN载荷中的features，形如"device::ro.product.name=x;ro.product.model=y;features=a,b,c"
+  public static HashSet<String> parseFeatures(ByteBuffer payload) {
+    HashSet<String> features = new HashSet<>();
+    if (payload == null) return features;
+    byte[] bytes = new byte[payload.remaining()];
+    payload.duplicate().get(bytes);
+    String banner = new String(bytes, StandardCharsets.UTF_8);
+    int start = banner.indexOf("features=");
+    if (start < 0) return features;
+    int end = banner.indexOf(';', start);
+    for (String feature : banner.substring(start + 9, end < 0 ? banner.length() : end).split(",")) {
+      feature = feature.trim();
+      if (!feature.isEmpty()) features.add(feature);
+    }
+    return features;
+  }
+
   private static ByteBuffer generateMessage(int cmd, int arg0, int arg1, byte[] payload) {
 
     int size = payload == null ? ADB_HEADER_LENGTH : (ADB_HEADER_LENGTH + payload.length);
-    ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer buffer = BufferPool.heap.acquire(size).order(ByteOrder.LITTLE_ENDIAN);
 
     buffer.putInt(cmd);
     buffer.putInt(arg0);
@@ -85,12 +175,68 @@ public class AdbProtocol {
     return tmpBuffer;
   }
 
+  // shell v2报文：1字节ID、4字节小端长度与数据
+  public static ByteBuffer generateShellPacket(int id, ByteBuffer data) {
+    int len = data.remaining();
+    ByteBuffer buffer = BufferPool.heap.acquire(5 + len).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.put((byte) id);
+    buffer.putInt(len);
+    buffer.put(data);
+    buffer.flip();
+    return buffer;
+  }
+
+  // SND2：请求头与路径之后，再跟一个携带文件模式与压缩标志的头
+  public static ByteBuffer generateSendV2(String path, int mode, int flags) {
+    byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer tmpBuffer = ByteBuffer.allocate(8 + bytes.length + 12);
+    tmpBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    tmpBuffer.put("SND2".getBytes(StandardCharsets.UTF_8));
+    tmpBuffer.putInt(bytes.length);
+    tmpBuffer.put(bytes);
+    tmpBuffer.put("SND2".getBytes(StandardCharsets.UTF_8));
+    tmpBuffer.putInt(mode);
+    tmpBuffer.putInt(flags);
+    tmpBuffer.flip();
+    return tmpBuffer;
+  }
+
+  // RCV2：请求头与路径之后，再跟一个携带压缩标志的头
+  public static ByteBuffer generateRecvV2(String path, int flags) {
+    byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer tmpBuffer = ByteBuffer.allocate(8 + bytes.length + 8);
+    tmpBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    tmpBuffer.put("RCV2".getBytes(StandardCharsets.UTF_8));
+    tmpBuffer.putInt(bytes.length);
+    tmpBuffer.put(bytes);
+    tmpBuffer.put("RCV2".getBytes(StandardCharsets.UTF_8));
+    tmpBuffer.putInt(flags);
+    tmpBuffer.flip();
+    return tmpBuffer;
+  }
+
   private static int payloadChecksum(byte[] payload) {
     int checksum = 0;
     for (byte b : payload) checksum += (b & 0xFF);
     return checksum;
   }
 
+  // 每次取8字节拆成4个16位通道同时累加，通道溢出前（最多128次）折叠进结果
+  private static int payloadChecksum(ByteBuffer buffer, int offset, int len) {
+    int checksum = 0;
+    int i = 0;
+    while (len - i >= 8) {
+      long lanes = 0;
+      for (int n = 0; n < 128 && len - i >= 8; n++, i += 8) {
+        long value = buffer.getLong(offset + i);
+        lanes += (value & 0x00FF00FF00FF00FFL) + ((value >>> 8) & 0x00FF00FF00FF00FFL);
+      }
+      checksum += (int) ((lanes & 0xFFFF) + ((lanes >>> 16) & 0xFFFF) + ((lanes >>> 32) & 0xFFFF) + (lanes >>> 48));
+    }
+    for (; i < len; i++) checksum += (buffer.get(offset + i) & 0xFF);
+    return checksum;
+  }
+
   final static class AdbMessage {
     public int command;
     public int arg0;
@@ -98,16 +244,24 @@ public class AdbProtocol {
     public int payloadLength;
     public ByteBuffer payload = null;
 
-    public static AdbMessage parseAdbMessage(AdbChannel channel) throws IOException, InterruptedException {
-      AdbMessage msg = new AdbMessage();
-      ByteBuffer buffer = channel.read(ADB_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    public static AdbMessage parseAdbMessage(AdbChannel channel, int maxData) throws IOException, InterruptedException {
+      ByteBuffer buffer = channel.read(ADB_HEADER_LENGTH);
+      AdbMessage msg = parseHeader(buffer, maxData);
+      BufferPool.recycle(buffer);
+      if (msg.payloadLength > 0) msg.payload = channel.read(msg.payloadLength);
 
+      return msg;
+    }
+
+    // 解析报文头，payload由调用方另行读取，声明的载荷长度超出maxData视为连接异常
+    public static AdbMessage parseHeader(ByteBuffer buffer, int maxData) throws IOException {
+      AdbMessage msg = new AdbMessage();
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
       msg.command = buffer.getInt();
       msg.arg0 = buffer.getInt();
       msg.arg1 = buffer.getInt();
       msg.payloadLength = buffer.getInt();
-      if (msg.payloadLength > 0) msg.payload = channel.read(msg.payloadLength);
-
+      if (msg.payloadLength < 0 || msg.payloadLength > maxData) throw new IOException("invalid payload length: " + msg.payloadLength);
       return msg;
     }
   }
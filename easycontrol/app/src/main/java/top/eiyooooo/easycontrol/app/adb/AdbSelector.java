@@ -0,0 +1,319 @@
+package top.eiyooooo.easycontrol.app.adb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import top.eiyooooo.easycontrol.app.buffer.BufferPool;
+
+// 共享的选择器线程：所有复用的无线ADB连接由同一个线程完成读取、解析、分发和写出，线程数不随设备数增长
+// 分发在选择器线程上执行，回调中不得阻塞：目标流无法接收时回调返回false，该连接暂停读取，直到重试成功
+final class AdbSelector implements Runnable {
+  private static AdbSelector adbSelector;
+  // 每个连接每轮最多读取的次数，避免繁忙的连接（如视频流）独占选择器线程
+  private static final int MAX_READS_PER_ROUND = 16;
+  // 存在暂停读取的连接时，按此间隔重试
+  private static final long BLOCKED_RETRY_INTERVAL = 10;
+
+  private final Selector selector;
+  private final Thread thread;
+  private final ConcurrentLinkedQueue<Connection> pendingRegister = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<Connection> pendingWrite = new ConcurrentLinkedQueue<>();
+  // 暂停读取的连接，只由选择器线程访问
+  private final ArrayList<Connection> blockedConnections = new ArrayList<>();
+
+  private AdbSelector() throws IOException {
+    selector = Selector.open();
+    thread = new Thread(this, "AdbSelector");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MAX_PRIORITY);
+    thread.start();
+  }
+
+  static synchronized AdbSelector getInstance() throws IOException {
+    if (adbSelector == null) adbSelector = new AdbSelector();
+    return adbSelector;
+  }
+
+  // 接管已完成认证的连接
+  Connection register(NioTcpChannel channel, int maxData, Handler handler) throws IOException {
+    SocketChannel socketChannel = channel.getSocketChannel();
+    socketChannel.configureBlocking(false);
+    Connection connection = new Connection(socketChannel, maxData, handler);
+    // 认证阶段预读但未消费的数据，注册后先行解析
+    ByteBuffer readAhead = channel.getReadAhead();
+    if (readAhead.hasRemaining()) {
+      connection.leftover = ByteBuffer.allocate(readAhead.remaining());
+      connection.leftover.put(readAhead).flip();
+    }
+    pendingRegister.offer(connection);
+    selector.wakeup();
+    return connection;
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        selector.select(blockedConnections.isEmpty() ? 0 : BLOCKED_RETRY_INTERVAL);
+        Connection connection;
+        while ((connection = pendingRegister.poll()) != null) {
+          try {
+            connection.key = connection.socketChannel.register(selector, SelectionKey.OP_READ, connection);
+            connection.onRegistered();
+          } catch (Exception e) {
+            connection.fail(e);
+          }
+        }
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+          SelectionKey key = iterator.next();
+          iterator.remove();
+          connection = (Connection) key.attachment();
+          try {
+            if (key.isReadable()) connection.onReadable();
+            if (key.isValid() && key.isWritable()) connection.flushOut();
+          } catch (Exception e) {
+            connection.fail(e);
+          }
+        }
+        retryBlocked();
+        // 分发过程中产生的报文在本轮末尾写出
+        while ((connection = pendingWrite.poll()) != null) {
+          try {
+            connection.flushOut();
+          } catch (Exception e) {
+            connection.fail(e);
+          }
+        }
+      } catch (Exception ignored) {
+      }
+    }
+  }
+
+  private void retryBlocked() {
+    // 仍无法分发的连接在重试中重新加入列表末尾，本轮不再处理
+    for (int i = blockedConnections.size() - 1; i >= 0; i--) {
+      Connection connection = blockedConnections.remove(i);
+      if (connection.isClosed) continue;
+      try {
+        connection.retryBlocked();
+      } catch (Exception e) {
+        connection.fail(e);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ConcurrentLinkedQueue<ByteBuffer>[] newSendQueues() {
+    ConcurrentLinkedQueue<ByteBuffer>[] sendQueues = new ConcurrentLinkedQueue[Adb.SEND_WEIGHTS.length];
+    for (int i = 0; i < sendQueues.length; i++) sendQueues[i] = new ConcurrentLinkedQueue<>();
+    return sendQueues;
+  }
+
+  interface Handler {
+    // 返回false表示暂时无法接收，报文由选择器保留并稍后重试
+    boolean onMessage(AdbProtocol.AdbMessage message) throws Exception;
+
+    void onClose(Exception e);
+  }
+
+  final class Connection {
+    private final SocketChannel socketChannel;
+    private final Handler handler;
+    // 协商后的最大载荷，超出即关闭连接
+    private final int maxData;
+    private SelectionKey key;
+    private volatile boolean isClosed = false;
+    // 读取状态，payload为空时正在读取报文头
+    private final ByteBuffer header = ByteBuffer.allocateDirect(AdbProtocol.ADB_HEADER_LENGTH);
+    private ByteBuffer payload;
+    private AdbProtocol.AdbMessage message;
+    private final ByteBuffer[] scatter = new ByteBuffer[2];
+    // 无法分发而暂存的报文，不为空时停止读取
+    private AdbProtocol.AdbMessage blocked;
+    private boolean isWaitingWritable = false;
+    // 写出状态，outBatch中outIndex至outCount为尚未写完的报文
+    // 每个优先级一个发送队列，写出时按权重轮询
+    private final ConcurrentLinkedQueue<ByteBuffer>[] sendQueues = newSendQueues();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+    private final ByteBuffer[] outBatch = new ByteBuffer[64];
+    private int outIndex = 0;
+    private int outCount = 0;
+    private ByteBuffer leftover;
+
+    private Connection(SocketChannel socketChannel, int maxData, Handler handler) {
+      this.socketChannel = socketChannel;
+      this.maxData = maxData;
+      this.handler = handler;
+    }
+
+    // 任意线程均可调用，不会阻塞
+    void send(ByteBuffer byteBuffer, int priority) {
+      if (isClosed) return;
+      sendQueues[priority].offer(byteBuffer);
+      if (writeScheduled.compareAndSet(false, true)) {
+        pendingWrite.offer(this);
+        if (Thread.currentThread() != thread) selector.wakeup();
+      }
+    }
+
+    private void onRegistered() throws Exception {
+      if (isClosed) {
+        key.cancel();
+        return;
+      }
+      // 注册前已提交的报文
+      flushOut();
+      dispatchLeftover();
+    }
+
+    private void dispatchLeftover() throws Exception {
+      if (leftover == null) return;
+      while (leftover.hasRemaining() && !isClosed) {
+        if (blocked != null) return;
+        ByteBuffer target = payload == null ? header : payload;
+        int len = Math.min(leftover.remaining(), target.remaining());
+        int oldLimit = leftover.limit();
+        leftover.limit(leftover.position() + len);
+        target.put(leftover);
+        leftover.limit(oldLimit);
+        dispatch();
+      }
+      leftover = null;
+    }
+
+    // 重新分发暂存的报文，成功后恢复读取并处理已读入的数据
+    private void retryBlocked() throws Exception {
+      AdbProtocol.AdbMessage adbMessage = blocked;
+      blocked = null;
+      deliver(adbMessage);
+      if (blocked != null) return;
+      updateInterestOps();
+      dispatch();
+      dispatchLeftover();
+    }
+
+    private void deliver(AdbProtocol.AdbMessage adbMessage) throws Exception {
+      if (handler.onMessage(adbMessage)) return;
+      blocked = adbMessage;
+      blockedConnections.add(this);
+      updateInterestOps();
+    }
+
+    private void updateInterestOps() {
+      if (key == null || !key.isValid()) return;
+      key.interestOps((blocked == null ? SelectionKey.OP_READ : 0) | (isWaitingWritable ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private void onReadable() throws Exception {
+      for (int i = 0; i < MAX_READS_PER_ROUND && blocked == null; i++) {
+        long read;
+        if (payload == null) read = socketChannel.read(header);
+        else {
+          // 负载剩余部分与下一个报文头一次读入
+          scatter[0] = payload;
+          scatter[1] = header;
+          read = socketChannel.read(scatter);
+          scatter[0] = null;
+        }
+        if (read < 0) throw new IOException("connection closed");
+        dispatch();
+        if (read == 0 || isClosed) return;
+      }
+    }
+
+    // 分发已凑齐的报文
+    private void dispatch() throws Exception {
+      while (!isClosed && blocked == null) {
+        if (payload == null) {
+          if (header.hasRemaining()) return;
+          header.flip();
+          message = AdbProtocol.AdbMessage.parseHeader(header, maxData);
+          header.clear();
+          if (message.payloadLength > 0) {
+            payload = BufferPool.direct.acquire(message.payloadLength);
+            continue;
+          }
+        } else {
+          if (payload.hasRemaining()) return;
+          payload.flip();
+          message.payload = payload;
+          payload = null;
+        }
+        AdbProtocol.AdbMessage adbMessage = message;
+        message = null;
+        deliver(adbMessage);
+      }
+    }
+
+    private void flushOut() throws IOException {
+      writeScheduled.set(false);
+      // 尚未注册时由onRegistered写出
+      if (isClosed || key == null) return;
+      while (true) {
+        if (outIndex == outCount) {
+          outIndex = outCount = 0;
+          fillBatch();
+          if (outCount == 0) {
+            isWaitingWritable = false;
+            updateInterestOps();
+            return;
+          }
+        }
+        socketChannel.write(outBatch, outIndex, outCount - outIndex);
+        while (outIndex < outCount && !outBatch[outIndex].hasRemaining()) {
+          BufferPool.recycle(outBatch[outIndex]);
+          outBatch[outIndex++] = null;
+        }
+        // 发送缓冲已满，等待可写
+        if (outIndex < outCount) {
+          isWaitingWritable = true;
+          updateInterestOps();
+          return;
+        }
+      }
+    }
+
+    // 加权轮询：每轮按优先级从高到低各取至多权重个报文
+    private void fillBatch() {
+      int bytes = 0;
+      boolean hasMore = true;
+      while (hasMore && outCount < outBatch.length && bytes < Adb.MAX_BATCH_BYTES) {
+        hasMore = false;
+        for (int priority = 0; priority < sendQueues.length; priority++) {
+          ConcurrentLinkedQueue<ByteBuffer> sendQueue = sendQueues[priority];
+          ByteBuffer byteBuffer;
+          for (int n = 0; n < Adb.SEND_WEIGHTS[priority] && outCount < outBatch.length && bytes < Adb.MAX_BATCH_BYTES && (byteBuffer = sendQueue.poll()) != null; n++) {
+            bytes += byteBuffer.remaining();
+            outBatch[outCount++] = byteBuffer;
+          }
+          if (!sendQueue.isEmpty()) hasMore = true;
+        }
+      }
+    }
+
+    private void fail(Exception e) {
+      if (isClosed) return;
+      close();
+      handler.onClose(e);
+    }
+
+    void close() {
+      if (isClosed) return;
+      isClosed = true;
+      if (key != null) key.cancel();
+      try {
+        socketChannel.close();
+      } catch (Exception ignored) {
+      }
+      for (ConcurrentLinkedQueue<ByteBuffer> sendQueue : sendQueues) sendQueue.clear();
+    }
+  }
+}
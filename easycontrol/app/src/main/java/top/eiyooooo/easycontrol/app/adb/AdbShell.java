@@ -0,0 +1,234 @@
+package top.eiyooooo.easycontrol.app.adb;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import top.eiyooooo.easycontrol.app.buffer.BufferStream;
+
+// shell连接：对方支持shell v2时stdin、stdout、stderr与退出码分包传输，由分流线程拆到各自的流中
+// 不支持时为原始shell，全部输出都在stdout中，连接关闭即视为退出，且没有stderr
+// 执行至结束的命令使用收集模式：输出由后台线程不断取出并累积，不受缓冲容量限制，输出再多也不会因缓冲写满而暂缓确认导致超时
+public final class AdbShell {
+  public static final int EXIT_UNKNOWN = -1;
+
+  private final BufferStream stream;
+  private final boolean isV2;
+  private final BufferStream stdout;
+  private final BufferStream stderr;
+  private volatile int exitCode = EXIT_UNKNOWN;
+  private final CountDownLatch exitLatch = new CountDownLatch(1);
+  // 收集模式下累积的输出，否则为null
+  private final ByteArrayOutputStream collectedStdout;
+  private final ByteArrayOutputStream collectedStderr;
+
+  AdbShell(BufferStream stream, boolean isV2, boolean collect) throws Exception {
+    this.stream = stream;
+    this.isV2 = isV2;
+    collectedStdout = collect ? new ByteArrayOutputStream() : null;
+    collectedStderr = collect ? new ByteArrayOutputStream() : null;
+    if (!isV2) {
+      stdout = stream;
+      stderr = null;
+      if (!collect) return;
+    } else {
+      stdout = newOutputStream();
+      stderr = newOutputStream();
+    }
+    Thread demuxThread = new Thread(isV2 ? this::demux : this::collectRaw);
+    demuxThread.setDaemon(true);
+    demuxThread.start();
+  }
+
+  public boolean isV2() {
+    return isV2;
+  }
+
+  public BufferStream getStdout() {
+    return stdout;
+  }
+
+  // 原始shell时为null
+  public BufferStream getStderr() {
+    return stderr;
+  }
+
+  // 原始shell或尚未退出时为EXIT_UNKNOWN
+  public int getExitCode() {
+    return exitCode;
+  }
+
+  public void write(ByteBuffer byteBuffer) throws Exception {
+    if (!isV2) {
+      stream.write(byteBuffer);
+      return;
+    }
+    stream.write(AdbProtocol.generateShellPacket(AdbProtocol.SHELL_STDIN, byteBuffer));
+  }
+
+  // 收到退出码（shell v2）或连接关闭即返回，超时返回false
+  public boolean awaitExit(long timeout) throws InterruptedException {
+    if (!isV2 && collectedStdout == null) return stream.awaitClose(timeout);
+    return exitLatch.await(timeout, TimeUnit.MILLISECONDS);
+  }
+
+  // 退出后取出全部输出
+  public Result getResult() {
+    if (collectedStdout != null) return new Result(exitCode, readCollected(collectedStdout), readCollected(collectedStderr));
+    return new Result(exitCode, readRemaining(stdout), stderr == null ? "" : readRemaining(stderr));
+  }
+
+  public boolean isClosed() {
+    return stream.isClosed();
+  }
+
+  public void close() {
+    stream.close();
+  }
+
+  private static String readRemaining(BufferStream bufferStream) {
+    ByteBuffer byteBuffer = bufferStream.readByteArrayBeforeClose();
+    return new String(byteBuffer.array(), 0, byteBuffer.position(), StandardCharsets.UTF_8);
+  }
+
+  private static String readCollected(ByteArrayOutputStream outputStream) {
+    synchronized (outputStream) {
+      return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+  // 数据可能是只读视图或堆外缓冲，无法直接取数组时拷贝
+  private static void append(ByteArrayOutputStream outputStream, ByteBuffer data) {
+    synchronized (outputStream) {
+      if (data.hasArray()) outputStream.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+      else {
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        outputStream.write(bytes, 0, bytes.length);
+      }
+    }
+  }
+
+  // 收集模式下的原始shell：不断取出全部输出，连接关闭即视为退出
+  private void collectRaw() {
+    try {
+      while (true) {
+        append(collectedStdout, stream.readByteArray(1));
+        append(collectedStdout, stream.readAllBytes());
+      }
+    } catch (Exception ignored) {
+      ByteBuffer leftover = stream.readByteArrayBeforeClose();
+      leftover.flip();
+      append(collectedStdout, leftover);
+    } finally {
+      exitLatch.countDown();
+    }
+  }
+
+  // stdout与stderr只接收分流线程放入的数据，关闭时关闭整个shell
+  private BufferStream newOutputStream() throws Exception {
+    return new BufferStream(true, new BufferStream.UnderlySocketFunction() {
+      @Override
+      public void connect(BufferStream bufferStream) {
+      }
+
+      @Override
+      public void write(BufferStream bufferStream, ByteBuffer[] buffers, int offset, int length) throws Exception {
+        for (int i = offset; i < offset + length; i++) AdbShell.this.write(buffers[i]);
+      }
+
+      @Override
+      public void flush(BufferStream bufferStream) {
+      }
+
+      @Override
+      public void close(BufferStream bufferStream) {
+        stream.close();
+      }
+    });
+  }
+
+  // 报文为1字节ID、4字节小端长度与数据；分流线程放不下时自然阻塞，底层连接随之暂缓确认
+  // 头部直接从接收缓冲解码，数据以只读视图转入各自的流，不分配中间数组
+  private void demux() {
+    int id = -1;
+    int len = 0;
+    try {
+      while (true) {
+        int packetId = stream.readByte();
+        int packetLen = Integer.reverseBytes(stream.readInt());
+        id = packetId;
+        len = packetLen;
+        ByteBuffer[] slices = stream.readByteBuffers(len);
+        id = -1;
+        if (slices.length == 0) handlePacket(packetId, ByteBuffer.allocate(0));
+        for (ByteBuffer slice : slices) handlePacket(packetId, slice);
+      }
+    } catch (Exception ignored) {
+      // 退出码报文通常紧挨着连接关闭到达，关闭后解析剩余的完整报文
+      ByteBuffer leftover = stream.readByteArrayBeforeClose();
+      leftover.flip();
+      leftover.order(ByteOrder.LITTLE_ENDIAN);
+      while (true) {
+        if (id < 0) {
+          if (leftover.remaining() < 5) break;
+          id = leftover.get();
+          len = leftover.getInt();
+        }
+        if (len < 0 || leftover.remaining() < len) break;
+        ByteBuffer data = leftover.slice();
+        data.limit(len);
+        leftover.position(leftover.position() + len);
+        handlePacket(id, data);
+        id = -1;
+      }
+    } finally {
+      stdout.close();
+      stderr.close();
+      exitLatch.countDown();
+    }
+  }
+
+  private void handlePacket(int id, ByteBuffer data) {
+    switch (id) {
+      case AdbProtocol.SHELL_STDOUT:
+        if (collectedStdout != null) append(collectedStdout, data);
+        else stdout.pushSource(data);
+        break;
+      case AdbProtocol.SHELL_STDERR:
+        if (collectedStderr != null) append(collectedStderr, data);
+        else stderr.pushSource(data);
+        break;
+      case AdbProtocol.SHELL_EXIT:
+        if (data.hasRemaining()) exitCode = data.get() & 0xFF;
+        exitLatch.countDown();
+        break;
+    }
+  }
+
+  public static final class Result {
+    public final int exitCode;
+    public final String stdout;
+    public final String stderr;
+
+    private Result(int exitCode, String stdout, String stderr) {
+      this.exitCode = exitCode;
+      this.stdout = stdout;
+      this.stderr = stderr;
+    }
+
+    // 兼容原始shell的合并输出
+    public String getOutput() {
+      return stdout + stderr;
+    }
+
+    // 有退出码时以退出码为准，原始shell只能从输出中判断
+    public boolean isFailed() {
+      if (exitCode != EXIT_UNKNOWN) return exitCode != 0;
+      return getOutput().contains("Exception");
+    }
+  }
+}
@@ -0,0 +1,311 @@
+package top.eiyooooo.easycontrol.app.adb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// sync v2所用的LZ4帧格式（与adbd的liblz4互通）
+// 压缩端输出独立块、64KB块大小、无校验和的帧；解压端支持任意块大小、链接块与可选校验字段（只跳过不校验）
+final class Lz4 {
+  static final int BLOCK_SIZE = 64 * 1024;
+  static final int FRAME_HEADER_LENGTH = 7;
+
+  private static final int MAGIC = 0x184D2204;
+  private static final int MIN_MATCH = 4;
+  // 最后一个匹配须在块尾12字节前开始，块尾5字节只能是字面量
+  private static final int MF_LIMIT = 12;
+  private static final int LAST_LITERALS = 5;
+  private static final int MAX_OFFSET = 65535;
+  private static final int HASH_LOG = 14;
+  private static final int UNCOMPRESSED_FLAG = 0x80000000;
+
+  private static final int PRIME1 = 0x9E3779B1;
+  private static final int PRIME2 = 0x85EBCA77;
+  private static final int PRIME3 = 0xC2B2AE3D;
+  private static final int PRIME4 = 0x27D4EB2F;
+  private static final int PRIME5 = 0x165667B1;
+
+  private Lz4() {
+  }
+
+  // 写入帧头：版本01、独立块、块大小64KB
+  static int writeFrameHeader(byte[] dst, int offset) {
+    writeIntLE(dst, offset, MAGIC);
+    dst[offset + 4] = 0x60;
+    dst[offset + 5] = 0x40;
+    dst[offset + 6] = (byte) (xxh32(dst, offset + 4, 2) >>> 8);
+    return FRAME_HEADER_LENGTH;
+  }
+
+  // 写入结束标记
+  static int writeEndMark(byte[] dst, int offset) {
+    writeIntLE(dst, offset, 0);
+    return 4;
+  }
+
+  // 单个块（含4字节块长度）输出的最大长度
+  static int maxBlockLength(int len) {
+    return 4 + len + len / 255 + 16;
+  }
+
+  // 压缩一个不超过BLOCK_SIZE的块，压缩后不更小时原样存储，返回写入的字节数
+  static int writeBlock(byte[] src, int srcOffset, int len, byte[] dst, int dstOffset, int[] hashTable) {
+    int compressed = compressBlock(src, srcOffset, len, dst, dstOffset + 4, hashTable);
+    if (compressed < len) {
+      writeIntLE(dst, dstOffset, compressed);
+      return 4 + compressed;
+    }
+    writeIntLE(dst, dstOffset, len | UNCOMPRESSED_FLAG);
+    System.arraycopy(src, srcOffset, dst, dstOffset + 4, len);
+    return 4 + len;
+  }
+
+  static int[] newHashTable() {
+    return new int[1 << HASH_LOG];
+  }
+
+  // 贪心匹配：以4字节哈希查找上一次出现的位置
+  private static int compressBlock(byte[] src, int srcOffset, int len, byte[] dst, int dstOffset, int[] hashTable) {
+    int end = srcOffset + len;
+    int matchLimit = end - LAST_LITERALS;
+    int mfLimit = end - MF_LIMIT;
+    int anchor = srcOffset;
+    int ip = srcOffset;
+    int op = dstOffset;
+    Arrays.fill(hashTable, -1);
+    while (ip < mfLimit) {
+      int sequence = readIntLE(src, ip);
+      int hash = (sequence * PRIME1) >>> (32 - HASH_LOG);
+      int ref = hashTable[hash];
+      hashTable[hash] = ip;
+      if (ref < 0 || ip - ref > MAX_OFFSET || readIntLE(src, ref) != sequence) {
+        ip++;
+        continue;
+      }
+      // 向前扩展匹配
+      while (ip > anchor && ref > srcOffset && src[ip - 1] == src[ref - 1]) {
+        ip--;
+        ref--;
+      }
+      int matchLength = MIN_MATCH;
+      while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) matchLength++;
+      op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+      ip += matchLength;
+      anchor = ip;
+    }
+    // 剩余部分全部作为字面量
+    op = writeSequence(src, anchor, end - anchor, 0, 0, dst, op);
+    return op - dstOffset;
+  }
+
+  // matchLength为0时只写字面量，用于块内最后一个序列
+  private static int writeSequence(byte[] src, int literalOffset, int literalLength, int offset, int matchLength, byte[] dst, int op) {
+    int tokenPosition = op++;
+    int token = Math.min(literalLength, 15) << 4;
+    if (literalLength >= 15) op = writeLength(literalLength - 15, dst, op);
+    System.arraycopy(src, literalOffset, dst, op, literalLength);
+    op += literalLength;
+    if (matchLength > 0) {
+      dst[op++] = (byte) offset;
+      dst[op++] = (byte) (offset >>> 8);
+      int length = matchLength - MIN_MATCH;
+      token |= Math.min(length, 15);
+      if (length >= 15) op = writeLength(length - 15, dst, op);
+    }
+    dst[tokenPosition] = (byte) token;
+    return op;
+  }
+
+  private static int writeLength(int length, byte[] dst, int op) {
+    while (length >= 255) {
+      dst[op++] = (byte) 255;
+      length -= 255;
+    }
+    dst[op++] = (byte) length;
+    return op;
+  }
+
+  // 流式解压，可按任意边界分段输入
+  static final class Decoder {
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_BLOCK = 1;
+    private static final int STATE_CONTENT_CHECKSUM = 2;
+
+    private final OutputStream outputStream;
+    private int state = STATE_HEADER;
+    // 尚未处理的输入
+    private byte[] input = new byte[BLOCK_SIZE + 8];
+    private int inputLength = 0;
+    // 帧参数
+    private boolean blockChecksum;
+    private boolean contentChecksum;
+    private int blockMaxSize;
+    // 已解压的数据，保留最近64KB供后续块引用
+    private byte[] window;
+    private int windowPosition;
+    private long decodedBytes = 0;
+
+    Decoder(OutputStream outputStream) {
+      this.outputStream = outputStream;
+    }
+
+    long getDecodedBytes() {
+      return decodedBytes;
+    }
+
+    void feed(ByteBuffer data) throws IOException {
+      int len = data.remaining();
+      if (inputLength + len > input.length) input = Arrays.copyOf(input, Math.max(input.length * 2, inputLength + len));
+      data.get(input, inputLength, len);
+      inputLength += len;
+      int position = 0;
+      while (true) {
+        int used;
+        if (state == STATE_HEADER) used = parseHeader(position);
+        else if (state == STATE_BLOCK) used = parseBlock(position);
+        else used = parseContentChecksum(position);
+        if (used == 0) break;
+        position += used;
+      }
+      System.arraycopy(input, position, input, 0, inputLength - position);
+      inputLength -= position;
+    }
+
+    // 输入结束时必须恰好位于帧边界
+    void finish() throws IOException {
+      if (state != STATE_HEADER || inputLength != 0) throw new IOException("lz4 frame truncated");
+    }
+
+    private int parseHeader(int position) throws IOException {
+      int available = inputLength - position;
+      if (available < 7) return 0;
+      int magic = readIntLE(input, position);
+      // 可跳过帧
+      if ((magic & 0xFFFFFFF0) == 0x184D2A50) {
+        if (available < 8) return 0;
+        long size = readIntLE(input, position + 4) & 0xFFFFFFFFL;
+        if (available < 8 + size) return 0;
+        return (int) (8 + size);
+      }
+      if (magic != MAGIC) throw new IOException("lz4 bad magic");
+      int flag = input[position + 4] & 0xFF;
+      if ((flag >>> 6) != 1) throw new IOException("lz4 bad version");
+      int headerLength = 7 + ((flag & 0x08) != 0 ? 8 : 0) + ((flag & 0x01) != 0 ? 4 : 0);
+      if (available < headerLength) return 0;
+      int blockSizeId = (input[position + 5] >>> 4) & 0x07;
+      if (blockSizeId < 4) throw new IOException("lz4 bad block size");
+      blockMaxSize = 1 << (2 * blockSizeId + 8);
+      blockChecksum = (flag & 0x10) != 0;
+      contentChecksum = (flag & 0x04) != 0;
+      if (window == null || window.length < 65536 + blockMaxSize) window = new byte[65536 + blockMaxSize];
+      windowPosition = 0;
+      state = STATE_BLOCK;
+      return headerLength;
+    }
+
+    private int parseBlock(int position) throws IOException {
+      int available = inputLength - position;
+      if (available < 4) return 0;
+      int blockHeader = readIntLE(input, position);
+      // 结束标记
+      if (blockHeader == 0) {
+        state = contentChecksum ? STATE_CONTENT_CHECKSUM : STATE_HEADER;
+        return 4;
+      }
+      int size = blockHeader & ~UNCOMPRESSED_FLAG;
+      if (size > blockMaxSize) throw new IOException("lz4 block too large");
+      int blockLength = 4 + size + (blockChecksum ? 4 : 0);
+      if (available < blockLength) return 0;
+      // 为新块腾出空间，保留最近64KB
+      if (windowPosition + blockMaxSize > window.length) {
+        int keep = Math.min(windowPosition, 65536);
+        System.arraycopy(window, windowPosition - keep, window, 0, keep);
+        windowPosition = keep;
+      }
+      int start = windowPosition;
+      if ((blockHeader & UNCOMPRESSED_FLAG) != 0) {
+        System.arraycopy(input, position + 4, window, windowPosition, size);
+        windowPosition += size;
+      } else windowPosition = decompressBlock(input, position + 4, size, window, windowPosition, start + blockMaxSize);
+      outputStream.write(window, start, windowPosition - start);
+      decodedBytes += windowPosition - start;
+      return blockLength;
+    }
+
+    private int parseContentChecksum(int position) {
+      if (inputLength - position < 4) return 0;
+      state = STATE_HEADER;
+      return 4;
+    }
+  }
+
+  // 解压一个块到dst[op, opLimit)，返回解压后的结束位置
+  private static int decompressBlock(byte[] src, int ip, int len, byte[] dst, int op, int opLimit) throws IOException {
+    int end = ip + len;
+    try {
+      while (true) {
+        int token = src[ip++] & 0xFF;
+        int literalLength = token >>> 4;
+        if (literalLength == 15) {
+          int b;
+          do {
+            b = src[ip++] & 0xFF;
+            literalLength += b;
+          } while (b == 255);
+        }
+        if (ip + literalLength > end || op + literalLength > opLimit) throw new IOException("lz4 block corrupted");
+        System.arraycopy(src, ip, dst, op, literalLength);
+        ip += literalLength;
+        op += literalLength;
+        if (ip >= end) return op;
+        int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+        ip += 2;
+        int matchLength = token & 0x0F;
+        if (matchLength == 15) {
+          int b;
+          do {
+            b = src[ip++] & 0xFF;
+            matchLength += b;
+          } while (b == 255);
+        }
+        matchLength += MIN_MATCH;
+        int ref = op - offset;
+        if (offset == 0 || ref < 0 || op + matchLength > opLimit) throw new IOException("lz4 block corrupted");
+        // 重叠时逐字节复制
+        if (offset >= matchLength) {
+          System.arraycopy(dst, ref, dst, op, matchLength);
+          op += matchLength;
+        } else for (int i = 0; i < matchLength; i++) dst[op++] = dst[ref++];
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("lz4 block corrupted");
+    }
+  }
+
+  // 帧头校验只涉及不足16字节的数据
+  private static int xxh32(byte[] data, int offset, int len) {
+    int hash = PRIME5 + len;
+    int i = offset;
+    int end = offset + len;
+    for (; i + 4 <= end; i += 4) hash = Integer.rotateLeft(hash + readIntLE(data, i) * PRIME3, 17) * PRIME4;
+    for (; i < end; i++) hash = Integer.rotateLeft(hash + (data[i] & 0xFF) * PRIME5, 11) * PRIME1;
+    hash ^= hash >>> 15;
+    hash *= PRIME2;
+    hash ^= hash >>> 13;
+    hash *= PRIME3;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+
+  private static int readIntLE(byte[] data, int offset) {
+    return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8 | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+  }
+
+  private static void writeIntLE(byte[] data, int offset, int value) {
+    data[offset] = (byte) value;
+    data[offset + 1] = (byte) (value >>> 8);
+    data[offset + 2] = (byte) (value >>> 16);
+    data[offset + 3] = (byte) (value >>> 24);
+  }
+}
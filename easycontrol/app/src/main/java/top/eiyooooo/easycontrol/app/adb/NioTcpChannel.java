@@ -0,0 +1,107 @@
+package top.eiyooooo.easycontrol.app.adb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import top.eiyooooo.easycontrol.app.buffer.BufferPool;
+
+// 基于SocketChannel的TCP通道：读取使用堆外缓冲，读取负载时连同后续报文头一次分散读入，写出时一次聚集写出多个报文
+public class NioTcpChannel implements AdbChannel {
+  public static final int DEFAULT_SEND_BUFFER_SIZE = 1024 * 1024;
+  public static final int DEFAULT_RECEIVE_BUFFER_SIZE = 1024 * 1024;
+  private static final int READ_AHEAD_SIZE = 64 * 1024;
+
+  private final SocketChannel socketChannel;
+  // 预读缓冲，始终处于可读状态，未消费的数据位于position与limit之间
+  private final ByteBuffer readAhead = ByteBuffer.allocateDirect(READ_AHEAD_SIZE);
+  private final ByteBuffer[] scatter = new ByteBuffer[2];
+
+  public NioTcpChannel(String host, int port) throws IOException {
+    this(host, port, DEFAULT_SEND_BUFFER_SIZE, DEFAULT_RECEIVE_BUFFER_SIZE);
+  }
+
+  // 缓冲大小小于等于0时使用系统默认值
+  public NioTcpChannel(String host, int port, int sendBufferSize, int receiveBufferSize) throws IOException {
+    socketChannel = SocketChannel.open();
+    try {
+      Socket socket = socketChannel.socket();
+      socket.setTcpNoDelay(true);
+      // 接收缓冲需在连接前设置才能影响窗口大小
+      if (sendBufferSize > 0) socket.setSendBufferSize(sendBufferSize);
+      if (receiveBufferSize > 0) socket.setReceiveBufferSize(receiveBufferSize);
+      socket.connect(new InetSocketAddress(host, port), 5000);
+    } catch (IOException e) {
+      socketChannel.close();
+      throw e;
+    }
+    readAhead.flip();
+  }
+
+  @Override
+  public void write(ByteBuffer data) throws IOException {
+    while (data.hasRemaining()) socketChannel.write(data);
+  }
+
+  @Override
+  public void write(ByteBuffer[] data, int offset, int length) throws IOException {
+    int end = offset + length;
+    while (offset < end) {
+      socketChannel.write(data, offset, end - offset);
+      while (offset < end && !data[offset].hasRemaining()) offset++;
+    }
+  }
+
+  @Override
+  public void flush() {
+  }
+
+  @Override
+  public ByteBuffer read(int size) throws IOException {
+    ByteBuffer data = BufferPool.direct.acquire(size);
+    // 先取预读缓冲中已有的数据
+    if (readAhead.hasRemaining()) {
+      int len = Math.min(readAhead.remaining(), size);
+      int oldLimit = readAhead.limit();
+      readAhead.limit(readAhead.position() + len);
+      data.put(readAhead);
+      readAhead.limit(oldLimit);
+    }
+    // 预读缓冲已空，剩余部分直接读入目标缓冲，多余数据落入预读缓冲
+    while (data.hasRemaining()) {
+      readAhead.clear();
+      scatter[0] = data;
+      scatter[1] = readAhead;
+      long read = socketChannel.read(scatter);
+      readAhead.flip();
+      if (read < 0) {
+        scatter[0] = null;
+        BufferPool.direct.release(data);
+        throw new IOException("connection closed");
+      }
+    }
+    scatter[0] = null;
+    data.flip();
+    return data;
+  }
+
+  // 供共享选择器接管连接
+  SocketChannel getSocketChannel() {
+    return socketChannel;
+  }
+
+  // 已预读但未消费的数据
+  ByteBuffer getReadAhead() {
+    return readAhead;
+  }
+
+  @Override
+  public void close() {
+    try {
+      socketChannel.close();
+    } catch (Exception ignored) {
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package top.eiyooooo.easycontrol.app.adb;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -7,6 +8,8 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 
+import top.eiyooooo.easycontrol.app.buffer.BufferPool;
+
 public class TcpChannel implements AdbChannel {
   private final Socket socket = new Socket();
   private final InputStream inputStream;
@@ -17,12 +20,19 @@ public class TcpChannel implements AdbChannel {
     socket.connect(new InetSocketAddress(host, port), 5000);
     if (test) socket.setSoTimeout(2200);
     inputStream = socket.getInputStream();
-    outputStream = socket.getOutputStream();
+    // 小报文在缓冲中合并，flush时一次发出；大报文直接写出
+    outputStream = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
   }
 
   @Override
   public void write(ByteBuffer data) throws IOException {
-    outputStream.write(data.array());
+    outputStream.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    data.position(data.limit());
+  }
+
+  @Override
+  public void write(ByteBuffer[] data, int offset, int length) throws IOException {
+    for (int i = offset; i < offset + length; i++) write(data[i]);
   }
 
   @Override
@@ -32,15 +42,18 @@ public class TcpChannel implements AdbChannel {
 
   @Override
   public ByteBuffer read(int size) throws IOException {
-    byte[] buffer = new byte[size];
+    ByteBuffer data = BufferPool.heap.acquire(size);
+    byte[] buffer = data.array();
+    int offset = data.arrayOffset();
     int bytesRead = 0;
     while (bytesRead < size) {
       int bytesRemaining = size - bytesRead;
-      int read = inputStream.read(buffer, bytesRead, bytesRemaining);
+      int read = inputStream.read(buffer, offset + bytesRead, bytesRemaining);
       if (read == -1) break;
       bytesRead += read;
     }
-    return ByteBuffer.wrap(buffer);
+    data.limit(bytesRead);
+    return data;
   }
 
   @Override
@@ -13,20 +13,49 @@ import android.hardware.usb.UsbRequest;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 import top.eiyooooo.easycontrol.app.entity.AppData;
 import top.eiyooooo.easycontrol.app.buffer.Buffer;
+import top.eiyooooo.easycontrol.app.buffer.BufferPool;
 
 public class UsbChannel implements AdbChannel {
+  // 旧版Android单次传输不能超过16KB
+  private static final int READ_REQUEST_SIZE = 16 * 1024;
+  // 同时在途的写出请求数上限（头部与载荷各算一个），超过时写入方等待，超时视为连接异常
+  private static final int WRITE_DEPTH = 16;
+  private static final long WRITE_TIMEOUT = 5000;
 
   private final UsbDeviceConnection usbConnection;
   private UsbInterface usbInterface = null;
   private UsbEndpoint endpointIn = null;
   private UsbEndpoint endpointOut = null;
-  private final Buffer sourceBuffer = new Buffer();
+  // USB请求使用堆外缓冲，读完后归还缓冲池
+  private final Buffer sourceBuffer = new Buffer(true);
   private final Thread readBackgroundThread = new Thread(this::readBackground);
   private final LinkedList<UsbRequest> mInRequestPool = new LinkedList<>();
+  // 报文载荷长度上限，协商前为本端声明的大小
+  private volatile int maxData = AdbProtocol.CONNECT_MAXDATA_USB;
+  // 按提交顺序排列的在途读取请求
+  private final ArrayDeque<ReadTransfer> inFlight = new ArrayDeque<>();
+  // 当前报文尚未提交读取的载荷字节数
+  private int payloadToQueue = 0;
+  // 已提交但尚未完成的头部读取，完成前不知道后续载荷长度
+  private boolean isHeaderPending = false;
+  // 写出请求由读取线程统一回收，outLock保护以下两项
+  private final Object outLock = new Object();
+  private final LinkedList<UsbRequest> mOutRequestPool = new LinkedList<>();
+  private int outInFlight = 0;
+  private volatile boolean isClosed = false;
+  // 写出统计
+  private final AtomicLong outTransfers = new AtomicLong();
+  private final AtomicLong outBytes = new AtomicLong();
+  private long sampleTime = System.nanoTime();
+  private long sampleTransfers = 0;
+  private long sampleBytes = 0;
 
   public UsbChannel(UsbDevice usbDevice) throws IOException {
     // 连接USB设备
@@ -61,70 +90,204 @@ public class UsbChannel implements AdbChannel {
   }
 
   @Override
-  public void write(ByteBuffer data) throws IOException {
+  public void write(ByteBuffer data) throws IOException, InterruptedException {
     // 此处感谢群友：○_○ 的帮助，ADB通过USB连接时必须头部和载荷分开发送，否则会导致ADB连接重置（官方的实现真差劲，明明可以顺序读取的）
+    // 头部与载荷作为两个异步请求依次提交，同一端点的请求按提交顺序发送，不必等待前一个完成
     while (data.remaining() > 0) {
-      // 读取头部
-      byte[] header = new byte[AdbProtocol.ADB_HEADER_LENGTH];
-      data.get(header);
-      usbConnection.bulkTransfer(endpointOut, header, header.length, 1000);
-      // 读取载荷
-      int payloadLength = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt(12);
-      if (payloadLength > 0) {
-        byte[] payload = new byte[payloadLength];
-        data.get(payload);
-        usbConnection.bulkTransfer(endpointOut, payload, payload.length, 1000);
+      int payloadLength = data.order(ByteOrder.LITTLE_ENDIAN).getInt(data.position() + 12);
+      queueWrite(data, AdbProtocol.ADB_HEADER_LENGTH);
+      if (payloadLength > 0) queueWrite(data, payloadLength);
+    }
+  }
+
+  // 从src取出len字节拷入池化的堆外缓冲并提交
+  private void queueWrite(ByteBuffer src, int len) throws IOException, InterruptedException {
+    UsbRequest request;
+    synchronized (outLock) {
+      long deadline = System.currentTimeMillis() + WRITE_TIMEOUT;
+      while (outInFlight >= WRITE_DEPTH) {
+        if (isClosed) throw new IOException("usb closed");
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) throw new IOException("usb write timeout");
+        outLock.wait(remaining);
+      }
+      request = mOutRequestPool.isEmpty() ? null : mOutRequestPool.removeFirst();
+      outInFlight++;
+    }
+    if (request == null) {
+      request = new UsbRequest();
+      if (!request.initialize(usbConnection, endpointOut)) {
+        releaseOutSlot();
+        throw new IOException("fail to initialize UsbRequest");
       }
     }
+    ByteBuffer data = BufferPool.direct.acquire(len);
+    int oldLimit = src.limit();
+    src.limit(src.position() + len);
+    data.put(src);
+    src.limit(oldLimit);
+    data.flip();
+    request.setClientData(data);
+    if (!request.queue(data, len)) {
+      BufferPool.direct.release(data);
+      releaseOutSlot();
+      throw new IOException("fail to queue write UsbRequest");
+    }
+  }
+
+  // 请求未能提交时归还在途名额，唤醒等待的写入方
+  private void releaseOutSlot() {
+    synchronized (outLock) {
+      outInFlight--;
+      outLock.notifyAll();
+    }
+  }
+
+  // 由读取线程在写出请求完成时调用
+  private void onWriteComplete(UsbRequest request) {
+    ByteBuffer data = (ByteBuffer) request.getClientData();
+    outTransfers.incrementAndGet();
+    outBytes.addAndGet(data.limit());
+    BufferPool.direct.release(data);
+    synchronized (outLock) {
+      mOutRequestPool.add(request);
+      outInFlight--;
+      outLock.notifyAll();
+    }
+  }
+
+  public long getOutTransfers() {
+    return outTransfers.get();
+  }
+
+  public long getOutBytes() {
+    return outBytes.get();
+  }
+
+  // 诊断用：自上次调用以来的写出速率
+  public synchronized String getOutStatistics() {
+    long now = System.nanoTime();
+    long transfers = outTransfers.get();
+    long bytes = outBytes.get();
+    double seconds = Math.max(now - sampleTime, 1) / 1e9;
+    String statistics = String.format(Locale.US, "usb out: %.0f transfers/s, %.0f B/s", (transfers - sampleTransfers) / seconds, (bytes - sampleBytes) / seconds);
+    sampleTime = now;
+    sampleTransfers = transfers;
+    sampleBytes = bytes;
+    return statistics;
+  }
+
+  @Override
+  public void write(ByteBuffer[] data, int offset, int length) throws IOException, InterruptedException {
+    for (int i = offset; i < offset + length; i++) write(data[i]);
   }
 
   @Override
   public ByteBuffer read(int size) throws InterruptedException, IOException {
-    return sourceBuffer.read(size);
+    ByteBuffer data = BufferPool.heap.acquire(size);
+    sourceBuffer.read(data);
+    data.flip();
+    return data;
   }
 
+  // 读取请求与ADB报文边界对齐：先读24字节头部，再按头部声明的长度读取载荷，与官方adb主机端一致
+  // 设备不发送零长度包，若请求长度超过报文剩余长度，恰为整包大小的最后一次传输会滞留到下一个报文到达
+  // 提交载荷读取时一并提交下一个头部读取，完成的传输按提交顺序写入sourceBuffer
+  // 头部完成前无法得知后续长度，因此在途请求为当前报文剩余的载荷读取加下一个头部读取，不再另设深度
   private void readBackground() {
     try {
+      queueReads();
       while (!Thread.interrupted()) {
-        // 读取头部
-        ByteBuffer header = readRequest(AdbProtocol.ADB_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
-        if (header.remaining() < AdbProtocol.ADB_HEADER_LENGTH) throw new IOException("read error");
-        sourceBuffer.write(header);
-        // 读取载荷
-        int payloadLength = header.getInt(12);
-        if (payloadLength > 0) {
-          ByteBuffer payload = readRequest(payloadLength);
-          sourceBuffer.write(payload);
+        UsbRequest request = usbConnection.requestWait();
+        if (request == null) throw new IOException("Connection.requestWait return null");
+        if (request.getEndpoint() == endpointOut) {
+          onWriteComplete(request);
+          continue;
+        }
+        if (request.getEndpoint() != endpointIn) continue;
+        ((ReadTransfer) request.getClientData()).isDone = true;
+        // 同一端点的请求本应按序完成，此处仍只交付队首连续完成的请求，保证字节流不乱序
+        while (!inFlight.isEmpty() && inFlight.peekFirst().isDone) {
+          ReadTransfer transfer = inFlight.pollFirst();
+          ByteBuffer data = transfer.data;
+          // 旧版Android不更新position，按请求长度处理
+          if (data.position() == 0) data.position(transfer.length);
+          data.flip();
+          if (data.remaining() != transfer.length) throw new IOException("usb short read");
+          if (transfer.isHeader) {
+            int payloadLength = data.order(ByteOrder.LITTLE_ENDIAN).getInt(12);
+            if (payloadLength < 0 || payloadLength > maxData) throw new IOException("invalid payload length: " + payloadLength);
+            payloadToQueue = payloadLength;
+            isHeaderPending = false;
+          }
+          mInRequestPool.add(transfer.request);
+          if (!sourceBuffer.write(data)) {
+            BufferPool.direct.release(data);
+            throw new IOException("usb closed");
+          }
         }
+        queueReads();
       }
     } catch (IOException ignored) {
+    } finally {
+      isClosed = true;
+      synchronized (outLock) {
+        outLock.notifyAll();
+      }
       sourceBuffer.close();
+      for (ReadTransfer transfer : inFlight) transfer.request.cancel();
+      inFlight.clear();
+    }
+  }
+
+  // 协商完成后由Adb设置
+  void setMaxData(int maxData) {
+    this.maxData = maxData;
+  }
+
+  // 先提交当前报文剩余的载荷，再提交下一个头部；头部未完成前无法继续
+  private void queueReads() throws IOException {
+    while (true) {
+      if (payloadToQueue > 0) {
+        int len = Math.min(payloadToQueue, READ_REQUEST_SIZE);
+        queueRead(len, false);
+        payloadToQueue -= len;
+      } else if (!isHeaderPending) {
+        queueRead(AdbProtocol.ADB_HEADER_LENGTH, true);
+        isHeaderPending = true;
+      } else return;
     }
   }
 
-  private ByteBuffer readRequest(int len) throws IOException {
+  private void queueRead(int length, boolean isHeader) throws IOException {
     // 获取Request
     UsbRequest request;
     if (mInRequestPool.isEmpty()) {
       request = new UsbRequest();
-      request.initialize(usbConnection, endpointIn);
+      if (!request.initialize(usbConnection, endpointIn)) throw new IOException("fail to initialize UsbRequest");
     } else request = mInRequestPool.removeFirst();
-    ByteBuffer data = ByteBuffer.allocate(len);
-    request.setClientData(data);
+    ReadTransfer transfer = new ReadTransfer(request, BufferPool.direct.acquire(length), length, isHeader);
+    request.setClientData(transfer);
     // 加入异步请求
-    if (!request.queue(data, len)) throw new IOException("fail to queue read UsbRequest");
-    // 等待请求回应
-    while (true) {
-      UsbRequest wait = usbConnection.requestWait();
-      if (wait == null) throw new IOException("Connection.requestWait return null");
-      if (wait.getEndpoint() == endpointIn) {
-        ByteBuffer clientData = (ByteBuffer) wait.getClientData();
-        mInRequestPool.add(request);
-        if (clientData == data) {
-          data.flip();
-          return data;
-        }
-      }
+    if (!request.queue(transfer.data, length)) {
+      BufferPool.direct.release(transfer.data);
+      throw new IOException("fail to queue read UsbRequest");
+    }
+    inFlight.addLast(transfer);
+  }
+
+  private static final class ReadTransfer {
+    private final UsbRequest request;
+    private final ByteBuffer data;
+    private final int length;
+    private final boolean isHeader;
+    private boolean isDone = false;
+
+    private ReadTransfer(UsbRequest request, ByteBuffer data, int length, boolean isHeader) {
+      this.request = request;
+      this.data = data;
+      this.length = length;
+      this.isHeader = isHeader;
     }
   }
 
@@ -134,6 +297,10 @@ public class UsbChannel implements AdbChannel {
 
   @Override
   public void close() {
+    isClosed = true;
+    synchronized (outLock) {
+      outLock.notifyAll();
+    }
     try {
       readBackgroundThread.interrupt();
       // 强制让adb执行错误，从而断开重连USB
@@ -2,67 +2,308 @@ package top.eiyooooo.easycontrol.app.buffer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+// 单消费者的无锁环形缓冲，环中只保存数据块引用（堆内或堆外均可），读取时消费者在头部数据块上移动位置，不再重新插入队头
+// 多个线程写入时在writeLock上串行，消费者方法以本对象为锁，双方在等待时都不持有对方需要的锁；开启回收时，被读完的数据块会归还缓冲池（已被切片引用的除外）
 public class Buffer {
-  private boolean isClosed = false;
-  private final LinkedBlockingDeque<ByteBuffer> dataQueue = new LinkedBlockingDeque<>();
+  private static final int DEFAULT_CAPACITY = 1024;
+  // 合并块大小，大于它的数据块不合并
+  private static final int COALESCE_SIZE = 64 * 1024;
 
-  public void write(ByteBuffer data) {
-    dataQueue.offerLast(data);
+  private final ByteBuffer[] ring;
+  private final int mask;
+  // head只由消费者修改，tail只由生产者修改
+  private volatile long head = 0;
+  private volatile long tail = 0;
+  // 可读字节数，生产者写入前增加、消费者读出后减少
+  private final AtomicInteger size = new AtomicInteger();
+  private volatile boolean isClosed = false;
+  private volatile Thread waitingReader;
+  private volatile Thread waitingWriter;
+  private final boolean recycle;
+  // 只用于生产者之间串行，环满时生产者持有它等待，消费者从不获取
+  private final Object writeLock = new Object();
+  // 生产者正在追加的合并块及其序号，只在writeLock内访问
+  private ByteBuffer coalesceChunk;
+  private long coalesceIndex = -1;
+  // 消费者移动head与生产者向合并块追加互斥，双方都不在持有时等待
+  private final Object headLock = new Object();
+  // 头部数据块是否已被readSlices引用，被引用的数据块不能归还缓冲池
+  private boolean headSliced = false;
+
+  public Buffer() {
+    this(DEFAULT_CAPACITY, false);
+  }
+
+  public Buffer(boolean recycle) {
+    this(DEFAULT_CAPACITY, recycle);
+  }
+
+  public Buffer(int capacity, boolean recycle) {
+    int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+    ring = new ByteBuffer[size];
+    mask = size - 1;
+    this.recycle = recycle;
+  }
+
+  // 返回true表示数据块已交给缓冲（空数据块在开启回收时直接归还），返回false时数据块仍归调用方，由调用方回收
+  // 环已满时阻塞等待消费者；缓冲已关闭或等待中线程被中断则放弃写入并返回false
+  public boolean write(ByteBuffer data) {
+    synchronized (writeLock) {
+      if (isClosed) return false;
+      if (!data.hasRemaining()) {
+        if (recycle) BufferPool.recycle(data);
+        return true;
+      }
+      long t = tail;
+      while (t - head == ring.length) {
+        waitingWriter = Thread.currentThread();
+        if (t - head == ring.length && !isClosed) LockSupport.park(this);
+        waitingWriter = null;
+        if (isClosed || Thread.currentThread().isInterrupted()) return false;
+      }
+      size.addAndGet(data.remaining());
+      ring[(int) t & mask] = data;
+      tail = t + 1;
+    }
+    Thread reader = waitingReader;
+    if (reader != null) LockSupport.unpark(reader);
+    return true;
+  }
+
+  // 数据块过半后，小数据块拷入合并块追加，而不再各占一个位置：对方在已授予的窗口内用大量小报文发送时也不会占满环
+  // 只在合并块尚未成为头部数据块时追加，此时消费者不会访问它；未过半时与write相同，不拷贝
+  public boolean writeCoalesced(ByteBuffer data) {
+    synchronized (writeLock) {
+      int len = data.remaining();
+      if (isClosed || len == 0 || len > COALESCE_SIZE || !isCrowded()) return write(data);
+      synchronized (headLock) {
+        ByteBuffer chunk = coalesceChunk;
+        if (chunk != null && coalesceIndex > head && chunk.capacity() - chunk.limit() >= len) {
+          int position = chunk.limit();
+          ByteBuffer target = chunk.duplicate();
+          target.limit(position + len).position(position);
+          target.put(data);
+          chunk.limit(position + len);
+          size.addAndGet(len);
+          if (recycle) BufferPool.recycle(data);
+          return true;
+        }
+      }
+      ByteBuffer chunk = BufferPool.heap.acquire(COALESCE_SIZE);
+      chunk.put(data.duplicate()).flip();
+      long t = tail;
+      if (!write(chunk)) {
+        BufferPool.heap.release(chunk);
+        return false;
+      }
+      if (recycle) BufferPool.recycle(data);
+      coalesceChunk = chunk;
+      coalesceIndex = t;
+      return true;
+    }
   }
 
   public synchronized ByteBuffer read(int len) throws InterruptedException, IOException {
     if (len < 0 || isClosed) throw new IOException("Buffer error");
     ByteBuffer data = ByteBuffer.allocate(len);
-    int bytesToRead = len;
-    while (bytesToRead > 0) {
-      ByteBuffer tmpData = dataQueue.takeFirst();
-      if (isClosed) throw new IOException("Buffer error");
-      int remaining = tmpData.remaining();
-      if (remaining <= bytesToRead) {
-        data.put(tmpData);
-        bytesToRead -= remaining;
-      } else {
-        int oldLimit = tmpData.limit();
-        tmpData.limit(tmpData.position() + bytesToRead);
-        data.put(tmpData);
-        tmpData.limit(oldLimit);
-        dataQueue.offerFirst(tmpData);
-        bytesToRead = 0;
-      }
-    }
+    read(data);
     data.flip();
     return data;
   }
 
-  public synchronized ByteBuffer readNext() throws InterruptedException, IOException {
+  // 读满dst的剩余空间，不额外分配内存
+  public synchronized void read(ByteBuffer dst) throws InterruptedException, IOException {
+    if (isClosed) throw new IOException("Buffer error");
+    while (dst.hasRemaining()) copyTo(waitHead(), dst);
+  }
+
+  // 限时读取：在timeout毫秒内凑齐dst所需数据才读取，否则不消费任何数据并返回false
+  public synchronized boolean read(ByteBuffer dst, long timeout) throws InterruptedException, IOException {
+    if (!waitData(dst.remaining(), timeout)) return false;
+    read(dst);
+    return true;
+  }
+
+  // 以只读视图的形式读取len字节，视图直接引用已接收的数据块，跨越多个数据块时返回多个视图
+  public synchronized ByteBuffer[] readSlices(int len) throws InterruptedException, IOException {
+    if (len < 0 || isClosed) throw new IOException("Buffer error");
+    ArrayList<ByteBuffer> slices = new ArrayList<>(1);
+    while (len > 0) {
+      ByteBuffer chunk = waitHead();
+      int sliceLen = Math.min(chunk.remaining(), len);
+      ByteBuffer slice = chunk.asReadOnlyBuffer();
+      slice.limit(slice.position() + sliceLen);
+      slices.add(slice);
+      headSliced = true;
+      chunk.position(chunk.position() + sliceLen);
+      consumed(chunk, sliceLen);
+      len -= sliceLen;
+    }
+    return slices.toArray(new ByteBuffer[0]);
+  }
+
+  // 基本类型直接从头部数据块按大端解码，不分配内存
+  public synchronized byte readByte() throws InterruptedException, IOException {
+    return (byte) readNumber(1);
+  }
+
+  public synchronized short readShort() throws InterruptedException, IOException {
+    return (short) readNumber(2);
+  }
+
+  public synchronized int readInt() throws InterruptedException, IOException {
+    return (int) readNumber(4);
+  }
+
+  public synchronized long readLong() throws InterruptedException, IOException {
+    return readNumber(8);
+  }
+
+  private long readNumber(int len) throws InterruptedException, IOException {
     if (isClosed) throw new IOException("Buffer error");
-    ByteBuffer byteBuffer = dataQueue.takeFirst();
+    ByteBuffer chunk = waitHead();
+    long value;
+    // 数据块内足够且字节序一致时直接读取，否则逐字节拼接（可能跨越多个数据块）
+    if (chunk.remaining() >= len && chunk.order() == ByteOrder.BIG_ENDIAN) {
+      switch (len) {
+        case 1:
+          value = chunk.get();
+          break;
+        case 2:
+          value = chunk.getShort();
+          break;
+        case 4:
+          value = chunk.getInt();
+          break;
+        default:
+          value = chunk.getLong();
+          break;
+      }
+      consumed(chunk, len);
+    } else {
+      value = 0;
+      for (int i = 0; i < len; i++) {
+        if (i > 0) chunk = waitHead();
+        value = (value << 8) | (chunk.get() & 0xFF);
+        consumed(chunk, 1);
+      }
+    }
+    return value;
+  }
+
+  public synchronized ByteBuffer readNext() throws InterruptedException, IOException {
     if (isClosed) throw new IOException("Buffer error");
+    ByteBuffer byteBuffer = waitHead();
+    size.addAndGet(-byteBuffer.remaining());
+    // 整块交给调用方，由调用方负责归还
+    headSliced = true;
+    advance();
     return byteBuffer;
   }
 
+  // 等待至少len字节可读，超时返回false
+  public synchronized boolean waitData(int len, long timeout) throws InterruptedException, IOException {
+    long deadline = System.nanoTime() + timeout * 1000000L;
+    while (true) {
+      if (isClosed) throw new IOException("Buffer error");
+      if (getSize() >= len) return true;
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) return false;
+      waitingReader = Thread.currentThread();
+      if (getSize() < len && !isClosed) LockSupport.parkNanos(this, remaining);
+      waitingReader = null;
+      if (Thread.interrupted()) throw new InterruptedException();
+    }
+  }
+
   public ByteBuffer readByteArrayBeforeClose() {
     ByteBuffer byteBuffer = ByteBuffer.allocate(Math.max(getSize(), 1));
-    for (ByteBuffer tmpBuffer : dataQueue) byteBuffer.put(tmpBuffer);
+    for (long i = head; i < tail; i++) {
+      ByteBuffer tmpBuffer = ring[(int) i & mask];
+      if (tmpBuffer != null) {
+        size.addAndGet(-tmpBuffer.remaining());
+        byteBuffer.put(tmpBuffer);
+      }
+    }
     return byteBuffer;
   }
 
+  // 环中数据块已过半，继续写入可能阻塞生产者
+  public boolean isCrowded() {
+    return tail - head >= ring.length / 2;
+  }
+
   public boolean isEmpty() {
-    return dataQueue.isEmpty();
+    return head == tail;
+  }
+
+  public boolean isFull() {
+    return tail - head == ring.length;
   }
 
   public int getSize() {
-    int size = 0;
-    for (ByteBuffer byteBuffer : dataQueue) size += byteBuffer.remaining();
-    return size;
+    return size.get();
   }
 
   public void close() {
     if (isClosed) return;
     isClosed = true;
-    dataQueue.offer(ByteBuffer.allocate(1));
+    Thread reader = waitingReader;
+    if (reader != null) LockSupport.unpark(reader);
+    Thread writer = waitingWriter;
+    if (writer != null) LockSupport.unpark(writer);
+  }
+
+  // 等待并返回头部数据块
+  private ByteBuffer waitHead() throws InterruptedException, IOException {
+    while (head == tail) {
+      waitingReader = Thread.currentThread();
+      if (head == tail && !isClosed) LockSupport.park(this);
+      waitingReader = null;
+      if (Thread.interrupted()) throw new InterruptedException();
+      if (isClosed) throw new IOException("Buffer error");
+    }
+    return ring[(int) head & mask];
+  }
+
+  private void consumed(ByteBuffer chunk, int len) {
+    size.addAndGet(-len);
+    if (!chunk.hasRemaining()) advance();
+  }
+
+  private void copyTo(ByteBuffer chunk, ByteBuffer dst) {
+    int remaining = chunk.remaining();
+    if (remaining <= dst.remaining()) {
+      dst.put(chunk);
+      size.addAndGet(-remaining);
+      advance();
+    } else {
+      int len = dst.remaining();
+      int oldLimit = chunk.limit();
+      chunk.limit(chunk.position() + len);
+      dst.put(chunk);
+      chunk.limit(oldLimit);
+      size.addAndGet(-len);
+    }
+  }
+
+  // 释放头部数据块
+  private void advance() {
+    long h = head;
+    int index = (int) h & mask;
+    if (recycle && !headSliced) BufferPool.recycle(ring[index]);
+    headSliced = false;
+    ring[index] = null;
+    synchronized (headLock) {
+      head = h + 1;
+    }
+    Thread writer = waitingWriter;
+    if (writer != null) LockSupport.unpark(writer);
   }
 
 }
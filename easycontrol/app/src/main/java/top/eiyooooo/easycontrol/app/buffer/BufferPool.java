@@ -0,0 +1,154 @@
+package top.eiyooooo.easycontrol.app.buffer;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 按大小分级的ByteBuffer池，供adb、缓冲、报文各层复用内存
+// 只有由池创建并登记的缓冲会被回收，其他缓冲调用release会被忽略，因此可以放心对来源不明的数据块调用release
+// release后调用方不得再使用该缓冲
+// 登记只持有弱引用，未归还而被丢弃的缓冲（例如被切片后交出的数据块）照常被GC回收，其登记位置留给新缓冲
+public final class BufferPool {
+  public static final BufferPool heap = new BufferPool(false);
+  public static final BufferPool direct = new BufferPool(true);
+
+  // 64B - 512KB
+  private static final int MIN_SHIFT = 6;
+  private static final int MAX_SHIFT = 19;
+  // 每级最多登记的内存总量
+  private static final int CLASS_BYTES = 1024 * 1024;
+
+  private final boolean isDirect;
+  private final SizeClass[] sizeClasses = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  private BufferPool(boolean isDirect) {
+    this.isDirect = isDirect;
+    for (int i = 0; i < sizeClasses.length; i++) {
+      int count = Math.max(4, Math.min(64, CLASS_BYTES >> (i + MIN_SHIFT)));
+      sizeClasses[i] = new SizeClass(count);
+    }
+  }
+
+  // 获取一个position为0、limit为size、大端序的缓冲，容量可能大于size
+  public ByteBuffer acquire(int size) {
+    int index = classIndex(size);
+    if (index < 0) {
+      misses.incrementAndGet();
+      return allocate(size);
+    }
+    SizeClass sizeClass = sizeClasses[index];
+    ByteBuffer byteBuffer;
+    boolean isOwned = true;
+    synchronized (sizeClass) {
+      if (sizeClass.freeCount > 0) {
+        byteBuffer = sizeClass.free[--sizeClass.freeCount];
+        sizeClass.free[sizeClass.freeCount] = null;
+        hits.incrementAndGet();
+      } else {
+        byteBuffer = allocate(1 << (index + MIN_SHIFT));
+        int result = sizeClass.register(byteBuffer);
+        if (result == SizeClass.REGISTER_FULL) isOwned = false;
+        // 复用了被丢弃缓冲的登记位置，该缓冲不会再归还
+        else if (result == SizeClass.REGISTER_REUSED) outstanding.decrementAndGet();
+        misses.incrementAndGet();
+      }
+    }
+    if (isOwned) outstanding.incrementAndGet();
+    byteBuffer.clear();
+    byteBuffer.limit(size);
+    return byteBuffer.order(ByteOrder.BIG_ENDIAN);
+  }
+
+  public void release(ByteBuffer byteBuffer) {
+    if (byteBuffer == null || byteBuffer.isReadOnly() || byteBuffer.isDirect() != isDirect) return;
+    int capacity = byteBuffer.capacity();
+    int index = classIndex(capacity);
+    if (index < 0 || (1 << (index + MIN_SHIFT)) != capacity) return;
+    SizeClass sizeClass = sizeClasses[index];
+    synchronized (sizeClass) {
+      if (!sizeClass.isOwned(byteBuffer) || sizeClass.isFree(byteBuffer)) return;
+      sizeClass.free[sizeClass.freeCount++] = byteBuffer;
+    }
+    outstanding.decrementAndGet();
+  }
+
+  // 按缓冲类型交给对应的池，用于来源可能是堆内也可能是堆外的数据块
+  public static void recycle(ByteBuffer byteBuffer) {
+    if (byteBuffer == null) return;
+    (byteBuffer.isDirect() ? direct : heap).release(byteBuffer);
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public int getOutstanding() {
+    return outstanding.get();
+  }
+
+  @Override
+  public String toString() {
+    return (isDirect ? "direct" : "heap") + " pool: hits=" + getHits() + " misses=" + getMisses() + " outstanding=" + getOutstanding();
+  }
+
+  private ByteBuffer allocate(int size) {
+    return isDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+  }
+
+  private static int classIndex(int size) {
+    if (size > 1 << MAX_SHIFT) return -1;
+    int shift = size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+    return shift - MIN_SHIFT;
+  }
+
+  private static final class SizeClass {
+    private static final int REGISTER_FULL = -1;
+    private static final int REGISTER_NEW = 0;
+    private static final int REGISTER_REUSED = 1;
+
+    private final WeakReference<ByteBuffer>[] owned;
+    private int ownedCount = 0;
+    private final ByteBuffer[] free;
+    private int freeCount = 0;
+
+    @SuppressWarnings("unchecked")
+    private SizeClass(int count) {
+      owned = new WeakReference[count];
+      free = new ByteBuffer[count];
+    }
+
+    // 空闲中的缓冲由free强引用，登记失效的只可能是未归还的缓冲
+    private int register(ByteBuffer byteBuffer) {
+      if (ownedCount < owned.length) {
+        owned[ownedCount++] = new WeakReference<>(byteBuffer);
+        return REGISTER_NEW;
+      }
+      for (int i = 0; i < ownedCount; i++) {
+        if (owned[i].get() == null) {
+          owned[i] = new WeakReference<>(byteBuffer);
+          return REGISTER_REUSED;
+        }
+      }
+      return REGISTER_FULL;
+    }
+
+    private boolean isOwned(ByteBuffer byteBuffer) {
+      for (int i = 0; i < ownedCount; i++) if (owned[i].get() == byteBuffer) return true;
+      return false;
+    }
+
+    private boolean isFree(ByteBuffer byteBuffer) {
+      for (int i = 0; i < freeCount; i++) if (free[i] == byteBuffer) return true;
+      return false;
+    }
+  }
+}
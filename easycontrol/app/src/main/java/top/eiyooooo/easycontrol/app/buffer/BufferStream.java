@@ -2,14 +2,29 @@ package top.eiyooooo.easycontrol.app.buffer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BufferStream {
-  private boolean isClosed = false;
+  private volatile boolean isClosed = false;
+  private final Object closeLock = new Object();
   private boolean canWrite;
   private final boolean canMultipleSend;
+  // 积压超过高水位时暂缓回复对方（adb即OKAY），消费者读到低水位以下再回复，默认不限制
+  // 接收缓冲的数据块过半时同样暂缓，但delayed_ack下对方仍可发完已授予的窗口，此后的小报文拷入合并块，使窗口内的数据不会占满环
+  private int highWatermark = Integer.MAX_VALUE;
+  private int lowWatermark = Integer.MAX_VALUE;
+  private final AtomicBoolean flushPending = new AtomicBoolean(false);
+  // 已收到但尚未向对方确认的字节数
+  private final AtomicInteger unackedBytes = new AtomicInteger();
+  // 发送额度（字节），启用后额度耗尽即暂停发送，直到底层连接补充额度（adb的delayed_ack）
+  private boolean useSendCredit = false;
+  private final AtomicLong sendCredit = new AtomicLong();
 
-  private final Buffer source = new Buffer();
-  private final Buffer sink = new Buffer();
+  // 读完的数据块自动归还缓冲池
+  private final Buffer source = new Buffer(true);
+  private final Buffer sink = new Buffer(true);
   private final UnderlySocketFunction underlySocketFunction;
 
   // canWrite的设立，是为了兼容某些底层连接不能随时发送，例如adb协议规定需等待对方回复确认后才可以开始下一次发送，因此使用canWrite限制发送
@@ -29,24 +44,63 @@ public class BufferStream {
     this(true, true, underlySocketFunction);
   }
 
+  // 接收缓冲的数据块已满时阻塞，正常情况下由上述水位控制与合并避免；连接已关闭时丢弃并回收数据块
   public void pushSource(ByteBuffer byteBuffer) {
-    if (byteBuffer != null) source.write(byteBuffer);
+    if (byteBuffer == null) return;
+    int len = byteBuffer.remaining();
+    unackedBytes.addAndGet(len);
+    if (!source.writeCoalesced(byteBuffer)) {
+      unackedBytes.addAndGet(-len);
+      BufferPool.recycle(byteBuffer);
+    }
+  }
+
+  // 取出并清零未确认的字节数，供底层连接回复确认
+  public int takeUnackedBytes() {
+    return unackedBytes.getAndSet(0);
+  }
+
+  // 需在连接建立前调用
+  public void enableSendCredit() {
+    useSendCredit = true;
+  }
+
+  public void addSendCredit(int bytes) throws Exception {
+    sendCredit.addAndGet(bytes);
+    if (canWrite) pollSink();
+  }
+
+  public void setWatermark(int highWatermark, int lowWatermark) {
+    this.highWatermark = highWatermark;
+    this.lowWatermark = Math.min(lowWatermark, highWatermark);
   }
 
   public byte readByte() throws InterruptedException, IOException {
-    return readByteArray(1).get();
+    if (isClosed) throw new IOException("connection is closed");
+    byte value = source.readByte();
+    checkFlushPending();
+    return value;
   }
 
   public short readShort() throws InterruptedException, IOException {
-    return readByteArray(2).getShort();
+    if (isClosed) throw new IOException("connection is closed");
+    short value = source.readShort();
+    checkFlushPending();
+    return value;
   }
 
   public int readInt() throws InterruptedException, IOException {
-    return readByteArray(4).getInt();
+    if (isClosed) throw new IOException("connection is closed");
+    int value = source.readInt();
+    checkFlushPending();
+    return value;
   }
 
   public long readLong() throws InterruptedException, IOException {
-    return readByteArray(8).getLong();
+    if (isClosed) throw new IOException("connection is closed");
+    long value = source.readLong();
+    checkFlushPending();
+    return value;
   }
 
   public ByteBuffer readAllBytes() throws InterruptedException, IOException {
@@ -55,16 +109,49 @@ public class BufferStream {
 
   public ByteBuffer readByteArray(int size) throws InterruptedException, IOException {
     if (isClosed) throw new IOException("connection is closed");
-    return source.read(size);
+    ByteBuffer byteBuffer = source.read(size);
+    checkFlushPending();
+    return byteBuffer;
+  }
+
+  // 零拷贝读取，返回引用已接收数据的只读视图
+  public ByteBuffer[] readByteBuffers(int size) throws InterruptedException, IOException {
+    if (isClosed) throw new IOException("connection is closed");
+    ByteBuffer[] byteBuffers = source.readSlices(size);
+    checkFlushPending();
+    return byteBuffers;
+  }
+
+  // 将size字节直接写入dst（例如MediaCodec的输入缓冲），不经过中间数组
+  public void transferTo(ByteBuffer dst, int size) throws InterruptedException, IOException {
+    if (isClosed) throw new IOException("connection is closed");
+    if (size > dst.remaining()) throw new IOException("buffer overflow");
+    int oldLimit = dst.limit();
+    dst.limit(dst.position() + size);
+    try {
+      source.read(dst);
+    } finally {
+      dst.limit(oldLimit);
+    }
+    checkFlushPending();
   }
 
   public ByteBuffer readByteArrayBeforeClose() {
     return source.readByteArrayBeforeClose();
   }
 
+  // 等待至少minBytes字节可读，数据到达即返回，超时返回false
+  public boolean awaitReadable(int minBytes, long timeout) throws InterruptedException, IOException {
+    if (isClosed) throw new IOException("connection is closed");
+    return source.waitData(minBytes, timeout);
+  }
+
   public void write(ByteBuffer byteBuffer) throws Exception {
     if (isClosed) throw new IOException("connection is closed");
-    sink.write(byteBuffer);
+    if (!sink.write(byteBuffer)) {
+      BufferPool.recycle(byteBuffer);
+      throw new IOException("connection is closed");
+    }
     pollSink();
   }
 
@@ -74,14 +161,41 @@ public class BufferStream {
     if (canWrite) pollSink();
   }
 
+  // 待发送数据块原样交给底层，不再合并拷贝
+  private final ByteBuffer[] sinkBatch = new ByteBuffer[64];
+
   private synchronized void pollSink() throws Exception {
-    if (canWrite && !sink.isEmpty()) underlySocketFunction.write(this, canMultipleSend ? sink.read(sink.getSize()) : sink.readNext());
+    while (canWrite && !sink.isEmpty() && (!useSendCredit || sendCredit.get() > 0)) {
+      int count = 0;
+      long bytes = 0;
+      // 启用发送额度时，批量取出的数据以额度为限，最后一块可以超出
+      do {
+        ByteBuffer byteBuffer = sink.readNext();
+        bytes += byteBuffer.remaining();
+        sinkBatch[count++] = byteBuffer;
+      } while (canMultipleSend && count < sinkBatch.length && !sink.isEmpty() && (!useSendCredit || bytes < sendCredit.get()));
+      if (useSendCredit) sendCredit.addAndGet(-bytes);
+      try {
+        underlySocketFunction.write(this, sinkBatch, 0, count);
+      } finally {
+        for (int i = 0; i < count; i++) {
+          BufferPool.heap.release(sinkBatch[i]);
+          sinkBatch[i] = null;
+        }
+      }
+      if (!canMultipleSend) break;
+    }
   }
 
   public boolean isEmpty() {
     return source.isEmpty();
   }
 
+  // 接收缓冲已满，此时pushSource会阻塞
+  public boolean isFull() {
+    return source.isFull();
+  }
+
   public int getSize() {
     return source.getSize();
   }
@@ -90,13 +204,45 @@ public class BufferStream {
     return isClosed;
   }
 
+  // 通知底层可继续接收数据，积压超过高水位时暂缓
   public void flush() throws Exception {
+    if (isClosed) return;
+    if (source.getSize() >= highWatermark || source.isCrowded()) {
+      flushPending.set(true);
+      // 置位期间消费者可能已读到低水位以下，此时由本线程补发
+      if (source.getSize() > lowWatermark || source.isCrowded() || !flushPending.compareAndSet(true, false)) return;
+    }
     underlySocketFunction.flush(this);
   }
 
+  private void checkFlushPending() throws IOException {
+    if (!flushPending.get() || source.getSize() > lowWatermark || source.isCrowded() || !flushPending.compareAndSet(true, false)) return;
+    try {
+      underlySocketFunction.flush(this);
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  // 等待连接关闭，超时返回false
+  public boolean awaitClose(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (closeLock) {
+      while (!isClosed) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) return false;
+        closeLock.wait(remaining);
+      }
+    }
+    return true;
+  }
+
   public void close() {
-    if (isClosed) return;
-    isClosed = true;
+    synchronized (closeLock) {
+      if (isClosed) return;
+      isClosed = true;
+      closeLock.notifyAll();
+    }
     source.close();
     sink.close();
     try {
@@ -108,7 +254,7 @@ public class BufferStream {
   public interface UnderlySocketFunction {
     void connect(BufferStream bufferStream) throws Exception;
 
-    void write(BufferStream bufferStream, ByteBuffer buffer) throws Exception;
+    void write(BufferStream bufferStream, ByteBuffer[] buffers, int offset, int length) throws Exception;
 
     void flush(BufferStream bufferStream) throws Exception;
 
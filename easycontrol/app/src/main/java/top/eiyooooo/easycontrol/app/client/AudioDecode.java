@@ -71,10 +71,10 @@ public class AudioDecode {
     else audioTrack.pause();
   }
 
-  private final LinkedBlockingQueue<byte[]> intputDataQueue = new LinkedBlockingQueue<>();
+  private final LinkedBlockingQueue<ByteBuffer[]> intputDataQueue = new LinkedBlockingQueue<>();
   private final LinkedBlockingQueue<Integer> intputBufferQueue = new LinkedBlockingQueue<>();
 
-  public void decodeIn(byte[] data) {
+  public void decodeIn(ByteBuffer[] data) {
     intputDataQueue.offer(data);
     checkDecode();
   }
@@ -82,9 +82,14 @@ public class AudioDecode {
   private synchronized void checkDecode() {
     if (intputDataQueue.isEmpty() || intputBufferQueue.isEmpty()) return;
     Integer inIndex = intputBufferQueue.poll();
-    byte[] data = intputDataQueue.poll();
-    decodec.getInputBuffer(inIndex).put(data);
-    decodec.queueInputBuffer(inIndex, 0, data.length, 0, 0);
+    ByteBuffer[] data = intputDataQueue.poll();
+    ByteBuffer inputBuffer = decodec.getInputBuffer(inIndex);
+    int size = 0;
+    for (ByteBuffer byteBuffer : data) {
+      size += byteBuffer.remaining();
+      inputBuffer.put(byteBuffer);
+    }
+    decodec.queueInputBuffer(inIndex, 0, size, 0, 0);
     checkDecode();
   }
 
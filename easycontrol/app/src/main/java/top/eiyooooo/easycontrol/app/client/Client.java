@@ -27,6 +27,8 @@ import top.eiyooooo.easycontrol.app.helper.PublicTools;
 import top.eiyooooo.easycontrol.app.BuildConfig;
 import top.eiyooooo.easycontrol.app.R;
 import top.eiyooooo.easycontrol.app.adb.Adb;
+import top.eiyooooo.easycontrol.app.adb.AdbManager;
+import top.eiyooooo.easycontrol.app.adb.AdbShell;
 import top.eiyooooo.easycontrol.app.buffer.BufferStream;
 import top.eiyooooo.easycontrol.app.client.view.ClientView;
 
@@ -39,7 +41,7 @@ public class Client {
   public Adb adb;
   private BufferStream bufferStream;
   private BufferStream videoStream;
-  private BufferStream shell;
+  private AdbShell shell;
 
   // 子服务
   private final Thread executeStreamInThread = new Thread(this::executeStreamIn);
@@ -139,18 +141,12 @@ public class Client {
 
   // 连接ADB
   private static Adb connectADB(Device device, UsbDevice usbDevice) throws Exception {
-    if (Adb.adbMap.containsKey(device.uuid)) return Adb.adbMap.get(device.uuid);
-    Adb adb;
-    if (usbDevice == null) adb = new Adb(device.uuid, device.address, AppData.keyPair);
-    else adb = new Adb(device.uuid, usbDevice, AppData.keyPair);
-    Adb.adbMap.put(device.uuid, adb);
-    return adb;
+    return AdbManager.connect(device, usbDevice);
   }
 
   // 启动Server
   private void startServer(Device device) throws Exception {
     if (adb.serverShell == null || adb.serverShell.isClosed()) adb.startServer();
-    shell = adb.getShell();
     int ScreenMode = (AppData.setting.getTurnOnScreenIfStart() ? 1 : 0) * 1000
             + (AppData.setting.getTurnOffScreenIfStart() ? 1 : 0) * 100
             + (AppData.setting.getTurnOffScreenIfStop() ? 1 : 0) * 10
@@ -161,30 +157,43 @@ public class Client {
     if (device.maxSize != 1600) cmd.append(" maxSize=").append(device.maxSize);
     if (device.maxFps != 60) cmd.append(" maxFps=").append(device.maxFps);
     if (device.maxVideoBit != 4) cmd.append(" maxVideoBit=").append(device.maxVideoBit);
+    if (device.minVideoBit > 0) cmd.append(" minVideoBit=").append(device.minVideoBit).append(" minFps=").append(device.minFps);
     if (displayId != 0) cmd.append(" displayId=").append(displayId);
     if (AppData.setting.getNewMirrorMode()) cmd.append(" mirrorMode=1");
     if (!AppData.setting.getKeepAwake()) cmd.append(" keepAwake=0");
     if (ScreenMode != 1001) cmd.append(" ScreenMode=").append(ScreenMode);
     if (!(device.useH265 && supportH265)) cmd.append(" useH265=0");
     if (!(device.useOpus && supportOpus)) cmd.append(" useOpus=0");
-    cmd.append(" \n");
-    shell.write(ByteBuffer.wrap(cmd.toString().getBytes()));
+    shell = adb.startProcess(cmd.toString());
     logger();
   }
 
   private Thread loggerThread;
+  private Thread errorLoggerThread;
   private void logger() {
-    loggerThread = new Thread(() -> {
+    loggerThread = logStream(shell.getStdout());
+    // shell v2的stderr单独一路
+    if (shell.getStderr() != null) errorLoggerThread = logStream(shell.getStderr());
+  }
+
+  private Thread logStream(BufferStream stream) {
+    Thread thread = new Thread(() -> {
       try {
+        // 数据到达即读取，按整行记录
+        StringBuilder pending = new StringBuilder();
         while (!Thread.interrupted()) {
-          String log = new String(shell.readAllBytes().array(), StandardCharsets.UTF_8);
-          if (!log.isEmpty()) L.logWithoutTime(uuid, log);
-          Thread.sleep(1000);
+          if (!stream.awaitReadable(1, timeoutDelay)) continue;
+          pending.append(new String(stream.readAllBytes().array(), StandardCharsets.UTF_8));
+          int end = pending.lastIndexOf("\n");
+          if (end < 0) continue;
+          L.logWithoutTime(uuid, pending.substring(0, end));
+          pending.delete(0, end + 1);
         }
       } catch (Exception ignored) {
       }
     });
-    loggerThread.start();
+    thread.start();
+    return thread;
   }
 
   private void tryCreateDisplay(Device device) {
@@ -244,15 +253,13 @@ public class Client {
             String output = Adb.getStringResponseFromServer(device, "openAppByPackage", "package=" + device.specified_app, "displayId=" + displayId);
             if (output.contains("failed")) throw new Exception("");
           } else {
-            String output = adb.runAdbCmd("am display move-stack " + appTaskId + " " + displayId);
-            if (output.contains("Exception")) throw new Exception("");
+            if (adb.runShellCmd("am display move-stack " + appTaskId + " " + displayId).isFailed()) throw new Exception("");
           }
           specifiedTransferred = true;
         }
       } else {
         if (tasksArray != null && tasksArray.length() > 0) {
-          String output = adb.runAdbCmd("am display move-stack " + tasksArray.getJSONObject(0).getInt("taskId") + " " + displayId);
-          if (output.contains("Exception")) throw new Exception("");
+          if (adb.runShellCmd("am display move-stack " + tasksArray.getJSONObject(0).getInt("taskId") + " " + displayId).isFailed()) throw new Exception("");
         } else throw new Exception("");
       }
     } catch (Exception ignored) {
@@ -267,8 +274,10 @@ public class Client {
     Thread.sleep(50);
     for (int i = 0; i < 60; i++) {
       try {
-        bufferStream = adb.localSocketForward("easycontrol_for_car_scrcpy");
-        videoStream = adb.localSocketForward("easycontrol_for_car_scrcpy");
+        bufferStream = adb.localSocketForward("easycontrol_for_car_scrcpy", Adb.PRIORITY_CONTROL);
+        videoStream = adb.localSocketForward("easycontrol_for_car_scrcpy", Adb.PRIORITY_VIDEO);
+        bufferStream.setWatermark(512 * 1024, 128 * 1024);
+        videoStream.setWatermark(1024 * 1024, 256 * 1024);
         return;
       } catch (Exception ignored) {
         Thread.sleep(50);
@@ -291,10 +300,10 @@ public class Client {
       Surface surface = clientView.getSurface();
       Pair<byte[], Long> csd0 = new Pair<>(controlPacket.readFrame(videoStream), videoStream.readLong());
       Pair<byte[], Long> csd1 = useH265 ? null : new Pair<>(controlPacket.readFrame(videoStream), videoStream.readLong());
-      videoDecode = new VideoDecode(videoSize, surface, csd0, csd1, handler);
+      videoDecode = new VideoDecode(videoSize, surface, csd0, csd1, handler, controlPacket::sendKeyFrameRequestEvent);
       // 循环处理报文
       while (!Thread.interrupted()) {
-        videoDecode.decodeIn(controlPacket.readFrame(videoStream), videoStream.readLong());
+        videoDecode.decodeIn(videoStream);
       }
     } catch (Exception e) {
       L.log(uuid, e);
@@ -311,10 +320,9 @@ public class Client {
       while (!Thread.interrupted()) {
         switch (bufferStream.readByte()) {
           case AUDIO_EVENT:
-            byte[] audioFrame = controlPacket.readFrame(bufferStream);
-            if (audioDecode != null) audioDecode.decodeIn(audioFrame);
+            if (audioDecode != null) audioDecode.decodeIn(controlPacket.readFrameSlices(bufferStream));
             else {
-              audioDecode = new AudioDecode(useOpus, audioFrame, handler);
+              audioDecode = new AudioDecode(useOpus, controlPacket.readFrame(bufferStream), handler);
               if (multiLink != 2) playAudio(true);
             }
             break;
@@ -341,6 +349,7 @@ public class Client {
     if (status == 1) {
       if (clientView.device.clipboardSync) controlPacket.checkClipBoard();
       controlPacket.sendKeepAlive();
+      if (clientView.device.minVideoBit > 0 && videoDecode != null) controlPacket.sendVideoStatEvent(videoDecode.getPendingFrames(), videoStream.getSize());
       AppData.uiHandler.postDelayed(this::executeOtherService, 1500);
     }
   }
@@ -392,8 +401,13 @@ public class Client {
             break;
           case 2:
             if (loggerThread != null) loggerThread.interrupt();
-            String log = new String(shell.readAllBytes().array(), StandardCharsets.UTF_8);
+            if (errorLoggerThread != null) errorLoggerThread.interrupt();
+            String log = new String(shell.getStdout().readAllBytes().array(), StandardCharsets.UTF_8);
             if (!log.isEmpty()) L.logWithoutTime(uuid, log);
+            if (shell.getStderr() != null) {
+              String errorLog = new String(shell.getStderr().readAllBytes().array(), StandardCharsets.UTF_8);
+              if (!errorLog.isEmpty()) L.logWithoutTime(uuid, errorLog);
+            }
             break;
           case 3:
             keepAliveThread.interrupt();
@@ -431,10 +445,7 @@ public class Client {
 
   public static ArrayList<String> getAppList(Device device, UsbDevice usbDevice) {
     try {
-      if (Adb.adbMap.get(device.uuid) == null) {
-        if (device.isLinkDevice()) Adb.adbMap.put(device.uuid, new Adb(device.uuid, usbDevice, AppData.keyPair));
-        else Adb.adbMap.put(device.uuid, new Adb(device.uuid, device.address, AppData.keyPair));
-      }
+      AdbManager.connect(device, device.isLinkDevice() ? usbDevice : null);
       ArrayList<String> appList = new ArrayList<>();
       String output = Adb.getStringResponseFromServer(device, "getAllAppInfo", "app_type=1");
       String[] allAppInfo = output.split("<!@n@!>");
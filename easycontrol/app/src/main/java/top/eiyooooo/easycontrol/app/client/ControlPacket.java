@@ -9,6 +9,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
 import top.eiyooooo.easycontrol.app.entity.AppData;
+import top.eiyooooo.easycontrol.app.buffer.BufferPool;
 import top.eiyooooo.easycontrol.app.buffer.BufferStream;
 
 public class ControlPacket {
@@ -22,6 +23,10 @@ public class ControlPacket {
     return bufferStream.readByteArray(bufferStream.readInt()).array();
   }
 
+  public ByteBuffer[] readFrameSlices(BufferStream bufferStream) throws IOException, InterruptedException {
+    return bufferStream.readByteBuffers(bufferStream.readInt());
+  }
+
   // 剪切板
   public String nowClipboardText = "";
 
@@ -46,7 +51,7 @@ public class ControlPacket {
       if (y > 1) y = 1;
       action = MotionEvent.ACTION_UP;
     }
-    ByteBuffer byteBuffer = ByteBuffer.allocate(15);
+    ByteBuffer byteBuffer = BufferPool.heap.acquire(15);
     // 触摸事件
     byteBuffer.put((byte) 1);
     // 触摸类型
@@ -64,7 +69,7 @@ public class ControlPacket {
 
   // 发送按键事件
   public void sendKeyEvent(int key, int meta, int displayIdToInject) {
-    ByteBuffer byteBuffer = ByteBuffer.allocate(13);
+    ByteBuffer byteBuffer = BufferPool.heap.acquire(13);
     // 输入事件
     byteBuffer.put((byte) 2);
     // 按键类型
@@ -79,7 +84,7 @@ public class ControlPacket {
   private void sendClipboardEvent() {
     byte[] tmpTextByte = nowClipboardText.getBytes(StandardCharsets.UTF_8);
     if (tmpTextByte.length == 0 || tmpTextByte.length > 5000) return;
-    ByteBuffer byteBuffer = ByteBuffer.allocate(5 + tmpTextByte.length);
+    ByteBuffer byteBuffer = BufferPool.heap.acquire(5 + tmpTextByte.length);
     byteBuffer.put((byte) 3);
     byteBuffer.putInt(tmpTextByte.length);
     byteBuffer.put(tmpTextByte);
@@ -94,7 +99,7 @@ public class ControlPacket {
 
   // 发送更新事件
   public void sendConfigChangedEvent(int mode) {
-    ByteBuffer byteBuffer = ByteBuffer.allocate(5);
+    ByteBuffer byteBuffer = BufferPool.heap.acquire(5);
     byteBuffer.put((byte) 5);
     byteBuffer.putInt(mode);
     byteBuffer.flip();
@@ -107,7 +112,7 @@ public class ControlPacket {
   }
 
   public void sendRotateEvent(int rotation) {
-    ByteBuffer byteBuffer = ByteBuffer.allocate(5);
+    ByteBuffer byteBuffer = BufferPool.heap.acquire(5);
     byteBuffer.put((byte) 6);
     byteBuffer.putInt(rotation);
     byteBuffer.flip();
@@ -126,13 +131,28 @@ public class ControlPacket {
 
   // 发送黑暗模式事件
   public void sendNightModeEvent(int mode) {
-      ByteBuffer byteBuffer = ByteBuffer.allocate(2);
+      ByteBuffer byteBuffer = BufferPool.heap.acquire(2);
       byteBuffer.put((byte) 9);
       byteBuffer.put((byte) mode);
       byteBuffer.flip();
       write.run(byteBuffer);
   }
 
+  // 请求关键帧，用于解码器重置或画面重新附着后尽快恢复
+  public void sendKeyFrameRequestEvent() {
+    write.run(ByteBuffer.wrap(new byte[]{10}));
+  }
+
+  // 发送视频接收状态，供服务端自适应调整码率与帧率
+  public void sendVideoStatEvent(int pendingFrames, int bufferedBytes) {
+    ByteBuffer byteBuffer = BufferPool.heap.acquire(9);
+    byteBuffer.put((byte) 11);
+    byteBuffer.putInt(pendingFrames);
+    byteBuffer.putInt(bufferedBytes);
+    byteBuffer.flip();
+    write.run(byteBuffer);
+  }
+
   public interface MyFunctionByteBuffer {
     void run(ByteBuffer byteBuffer);
   }
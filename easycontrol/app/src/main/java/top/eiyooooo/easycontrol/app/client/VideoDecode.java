@@ -12,6 +12,10 @@ import androidx.annotation.NonNull;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import top.eiyooooo.easycontrol.app.buffer.BufferStream;
+import top.eiyooooo.easycontrol.app.helper.PublicTools;
 
 public class VideoDecode {
   private MediaCodec decodec;
@@ -19,16 +23,27 @@ public class VideoDecode {
     @Override
     public void onInputBufferAvailable(MediaCodec mediaCodec, int inIndex) {
       intputBufferQueue.offer(inIndex);
-      checkDecode();
     }
 
     @Override
     public void onOutputBufferAvailable(@NonNull MediaCodec mediaCodec, int outIndex, @NonNull MediaCodec.BufferInfo bufferInfo) {
+      if (pendingFrames.get() > 0) pendingFrames.decrementAndGet();
       mediaCodec.releaseOutputBuffer(outIndex, bufferInfo.presentationTimeUs);
     }
 
     @Override
     public void onError(@NonNull MediaCodec mediaCodec, @NonNull MediaCodec.CodecException e) {
+      // 暂时性错误无需重置，可恢复错误重置解码器，不可恢复错误重建解码器，之后都需要关键帧才能恢复画面
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && !e.isTransient()) {
+        boolean isRecoverable = e.isRecoverable();
+        // 不在回调中直接停止解码器
+        handler.post(() -> {
+          if (isRecoverable) reset();
+          else recreate();
+        });
+        return;
+      }
+      requestKeyFrame.run();
     }
 
     @Override
@@ -36,7 +51,13 @@ public class VideoDecode {
     }
   };
 
-  public VideoDecode(Pair<Integer, Integer> videoSize, Surface surface, Pair<byte[], Long> csd0, Pair<byte[], Long> csd1, Handler handler) throws IOException {
+  private final PublicTools.MyFunction requestKeyFrame;
+  private MediaFormat decodecFormat;
+  private Surface surface;
+  private Handler handler;
+
+  public VideoDecode(Pair<Integer, Integer> videoSize, Surface surface, Pair<byte[], Long> csd0, Pair<byte[], Long> csd1, Handler handler, PublicTools.MyFunction requestKeyFrame) throws IOException, InterruptedException {
+    this.requestKeyFrame = requestKeyFrame;
     setVideoDecodec(videoSize, surface, csd0, csd1, handler);
   }
 
@@ -48,30 +69,121 @@ public class VideoDecode {
     }
   }
 
-  private final LinkedBlockingQueue<Pair<byte[], Long>> intputDataQueue = new LinkedBlockingQueue<>();
+  // 读取线程等待解码器的空闲输入缓冲，解码跟不上时读取线程阻塞，由BufferStream水位向对端施加背压
   private final LinkedBlockingQueue<Integer> intputBufferQueue = new LinkedBlockingQueue<>();
+  // 解码器重建失败时放入队列，唤醒等待中的读取线程
+  private static final int DECODEC_FAILED = -1;
+  // 写入输入缓冲与重置、重建解码器互斥，避免写入已失效的输入缓冲
+  private final Object decodecLock = new Object();
+
+  public void decodeIn(byte[] data, long pts) throws InterruptedException {
+    int inIndex = intputBufferQueue.take();
+    synchronized (decodecLock) {
+      decodec.getInputBuffer(inIndex).put(data);
+      decodec.queueInputBuffer(inIndex, 0, data.length, pts, 0);
+    }
+  }
+
+  // 帧数据直接从连接缓冲写入解码器输入缓冲
+  public void decodeIn(BufferStream bufferStream) throws InterruptedException, IOException {
+    int size = bufferStream.readInt();
+    int inIndex = intputBufferQueue.take();
+    if (inIndex == DECODEC_FAILED) throw new IOException("video decoder error");
+    synchronized (decodecLock) {
+      ByteBuffer inputBuffer = null;
+      try {
+        inputBuffer = decodec.getInputBuffer(inIndex);
+      } catch (IllegalStateException ignored) {
+      }
+      // 解码器重置后旧的输入缓冲失效，丢弃该帧，等待请求的关键帧
+      if (inputBuffer == null) {
+        skip(bufferStream, size);
+        return;
+      }
+      int start = inputBuffer.position();
+      try {
+        bufferStream.transferTo(inputBuffer, size);
+      } catch (IllegalStateException ignored) {
+        // 跳过该帧剩余数据，保持帧边界
+        skip(bufferStream, size - (inputBuffer.position() - start));
+        return;
+      }
+      long pts = bufferStream.readLong();
+      try {
+        decodec.queueInputBuffer(inIndex, 0, size, pts, 0);
+        pendingFrames.incrementAndGet();
+      } catch (IllegalStateException ignored) {
+      }
+    }
+  }
+
+  // 丢弃帧的剩余数据及其时间戳
+  private void skip(BufferStream bufferStream, int size) throws InterruptedException, IOException {
+    if (size > 0) bufferStream.readByteBuffers(size);
+    bufferStream.readLong();
+  }
+
+  // 重置解码器，视频标识头已在格式中，配置时自动送入，失败时重建
+  private void reset() {
+    boolean isReset = true;
+    synchronized (decodecLock) {
+      try {
+        decodec.stop();
+        intputBufferQueue.clear();
+        pendingFrames.set(0);
+        startDecodec();
+      } catch (Exception ignored) {
+        isReset = false;
+      }
+    }
+    if (isReset) requestKeyFrame.run();
+    else recreate();
+  }
 
-  public void decodeIn(byte[] data, long pts) {
-    intputDataQueue.offer(new Pair<>(data, pts));
-    checkDecode();
+  // 解码器进入不可恢复状态时释放并按原格式重新创建，仍然失败则让读取线程报错退出
+  private void recreate() {
+    synchronized (decodecLock) {
+      try {
+        decodec.release();
+      } catch (Exception ignored) {
+      }
+      intputBufferQueue.clear();
+      pendingFrames.set(0);
+      try {
+        decodec = MediaCodec.createDecoderByType(decodecFormat.getString(MediaFormat.KEY_MIME));
+        startDecodec();
+      } catch (Exception ignored) {
+        intputBufferQueue.offer(DECODEC_FAILED);
+        return;
+      }
+    }
+    requestKeyFrame.run();
   }
 
-  private synchronized void checkDecode() {
-    if (intputDataQueue.isEmpty() || intputBufferQueue.isEmpty()) return;
-    Integer inIndex = intputBufferQueue.poll();
-    Pair<byte[], Long> data = intputDataQueue.poll();
-    decodec.getInputBuffer(inIndex).put(data.first);
-    decodec.queueInputBuffer(inIndex, 0, data.first.length, data.second, 0);
-    checkDecode();
+  private void startDecodec() {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+      decodec.setCallback(callback, handler);
+    } else decodec.setCallback(callback);
+    decodec.configure(decodecFormat, surface, null, 0);
+    decodec.start();
+  }
+
+  // 已送入解码器但尚未输出的帧数，作为解码积压上报给服务端
+  private final AtomicInteger pendingFrames = new AtomicInteger(0);
+
+  public int getPendingFrames() {
+    return pendingFrames.get();
   }
 
   // 创建Codec
-  private void setVideoDecodec(Pair<Integer, Integer> videoSize, Surface surface, Pair<byte[], Long> csd0, Pair<byte[], Long> csd1, Handler handler) throws IOException {
+  private void setVideoDecodec(Pair<Integer, Integer> videoSize, Surface surface, Pair<byte[], Long> csd0, Pair<byte[], Long> csd1, Handler handler) throws IOException, InterruptedException {
     boolean isH265Support = csd1 == null;
     // 创建解码器
     String codecMime = isH265Support ? MediaFormat.MIMETYPE_VIDEO_HEVC : MediaFormat.MIMETYPE_VIDEO_AVC;
     decodec = MediaCodec.createDecoderByType(codecMime);
-    MediaFormat decodecFormat = MediaFormat.createVideoFormat(codecMime, videoSize.first, videoSize.second);
+    decodecFormat = MediaFormat.createVideoFormat(codecMime, videoSize.first, videoSize.second);
+    this.surface = surface;
+    this.handler = handler;
     // 获取视频标识头
     decodecFormat.setByteBuffer("csd-0", ByteBuffer.wrap(csd0.first));
     if (!isH265Support) decodecFormat.setByteBuffer("csd-1", ByteBuffer.wrap(csd1.first));
@@ -349,7 +349,11 @@ public class ClientView implements TextureView.SurfaceTextureListener {
     if (this.surfaceTexture == null) {
       this.surfaceTexture = surfaceTexture;
       onReady.run();
-    } else textureView.setSurfaceTexture(this.surfaceTexture);
+    } else {
+      textureView.setSurfaceTexture(this.surfaceTexture);
+      // 重新附着后请求关键帧，不必等待下一个关键帧周期
+      controlPacket.sendKeyFrameRequestEvent();
+    }
   }
 
   @Override
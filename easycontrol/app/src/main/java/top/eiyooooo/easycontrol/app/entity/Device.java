@@ -13,6 +13,9 @@ public class Device {
   public int maxSize;
   public int maxFps;
   public int maxVideoBit;
+  // 自适应码率下限，0为关闭；帧率下限仅在码率降至下限后使用
+  public int minVideoBit;
+  public int minFps;
   public boolean setResolution;
   public boolean defaultFull;
   public boolean useH265;
@@ -20,6 +23,7 @@ public class Device {
   public boolean connectOnStart;
   public boolean clipboardSync;
   public boolean nightModeSync;
+  public boolean useNioChannel;
   public int small_p_p_x;
   public int small_p_p_y;
   public int small_p_p_width;
@@ -57,6 +61,8 @@ public class Device {
                 int maxSize,
                 int maxFps,
                 int maxVideoBit,
+                int minVideoBit,
+                int minFps,
                 boolean setResolution,
                 boolean defaultFull,
                 boolean useH265,
@@ -64,6 +70,7 @@ public class Device {
                 boolean connectOnStart,
                 boolean clipboardSync,
                 boolean nightModeSync,
+                boolean useNioChannel,
                 int small_p_p_x, int small_p_p_y, int small_p_p_width, int small_p_p_height,
                 int small_p_l_x, int small_p_l_y, int small_p_l_width, int small_p_l_height,
                 int small_l_p_x, int small_l_p_y, int small_l_p_width, int small_l_p_height,
@@ -79,6 +86,8 @@ public class Device {
     this.maxSize = maxSize;
     this.maxFps = maxFps;
     this.maxVideoBit = maxVideoBit;
+    this.minVideoBit = minVideoBit;
+    this.minFps = minFps;
     this.setResolution = setResolution;
     this.defaultFull = defaultFull;
     this.useH265 = useH265;
@@ -86,6 +95,7 @@ public class Device {
     this.connectOnStart = connectOnStart;
     this.clipboardSync = clipboardSync;
     this.nightModeSync = nightModeSync;
+    this.useNioChannel = useNioChannel;
     this.small_p_p_x = small_p_p_x;
     this.small_p_p_y = small_p_p_y;
     this.small_p_p_width = small_p_p_width;
@@ -122,6 +132,8 @@ public class Device {
     target.maxSize = source.maxSize;
     target.maxFps = source.maxFps;
     target.maxVideoBit = source.maxVideoBit;
+    target.minVideoBit = source.minVideoBit;
+    target.minFps = source.minFps;
     target.setResolution = source.setResolution;
     target.defaultFull = source.defaultFull;
     target.useH265 = source.useH265;
@@ -129,6 +141,7 @@ public class Device {
     target.connectOnStart = source.connectOnStart;
     target.clipboardSync = source.clipboardSync;
     target.nightModeSync = source.nightModeSync;
+    target.useNioChannel = source.useNioChannel;
     target.small_p_p_x = source.small_p_p_x;
     target.small_p_p_y = source.small_p_p_y;
     target.small_p_p_width = source.small_p_p_width;
@@ -153,7 +166,7 @@ public class Device {
   }
 
   public static Device getDefaultDevice(String uuid, int type) {
-    return new Device(uuid, type, uuid, "", "", AppData.setting.getDefaultIsAudio(), AppData.setting.getDefaultMaxSize(), AppData.setting.getDefaultMaxFps(), AppData.setting.getDefaultMaxVideoBit(), AppData.setting.getDefaultSetResolution(), AppData.setting.getDefaultFull(), AppData.setting.getDefaultUseH265(), AppData.setting.getDefaultUseOpus(), false, AppData.setting.getDefaultClipboardSync(), AppData.setting.getDefaultNightModeSync(), SMALL_X, SMALL_Y, SMALL_WIDTH, SMALL_HEIGHT, SMALL_X, SMALL_Y, SMALL_WIDTH, SMALL_HEIGHT, SMALL_X, SMALL_Y, SMALL_WIDTH, SMALL_HEIGHT, SMALL_X, SMALL_Y, SMALL_WIDTH, SMALL_HEIGHT, SMALL_X, SMALL_Y, SMALL_WIDTH, SMALL_HEIGHT,MINI_Y);
+    return new Device(uuid, type, uuid, "", "", AppData.setting.getDefaultIsAudio(), AppData.setting.getDefaultMaxSize(), AppData.setting.getDefaultMaxFps(), AppData.setting.getDefaultMaxVideoBit(), AppData.setting.getDefaultMinVideoBit(), AppData.setting.getDefaultMinFps(), AppData.setting.getDefaultSetResolution(), AppData.setting.getDefaultFull(), AppData.setting.getDefaultUseH265(), AppData.setting.getDefaultUseOpus(), false, AppData.setting.getDefaultClipboardSync(), AppData.setting.getDefaultNightModeSync(), AppData.setting.getDefaultUseNioChannel(), SMALL_X, SMALL_Y, SMALL_WIDTH, SMALL_HEIGHT, SMALL_X, SMALL_Y, SMALL_WIDTH, SMALL_HEIGHT, SMALL_X, SMALL_Y, SMALL_WIDTH, SMALL_HEIGHT, SMALL_X, SMALL_Y, SMALL_WIDTH, SMALL_HEIGHT, SMALL_X, SMALL_Y, SMALL_WIDTH, SMALL_HEIGHT,MINI_Y);
   }
 
   public boolean isNormalDevice() {
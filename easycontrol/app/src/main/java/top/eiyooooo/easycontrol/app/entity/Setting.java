@@ -52,6 +52,24 @@ public final class Setting {
     editor.apply();
   }
 
+  public int getDefaultMinVideoBit() {
+    return sharedPreferences.getInt("defaultMinVideoBit", 0);
+  }
+
+  public void setDefaultMinVideoBit(int value) {
+    editor.putInt("defaultMinVideoBit", value);
+    editor.apply();
+  }
+
+  public int getDefaultMinFps() {
+    return sharedPreferences.getInt("defaultMinFps", 20);
+  }
+
+  public void setDefaultMinFps(int value) {
+    editor.putInt("defaultMinFps", value);
+    editor.apply();
+  }
+
   public boolean getDefaultSetResolution() {
     return sharedPreferences.getBoolean("defaultSetResolution", false);
   }
@@ -79,6 +97,15 @@ public final class Setting {
     editor.apply();
   }
 
+  public boolean getDefaultUseNioChannel() {
+    return sharedPreferences.getBoolean("defaultUseNioChannel", false);
+  }
+
+  public void setDefaultUseNioChannel(boolean value) {
+    editor.putBoolean("defaultUseNioChannel", value);
+    editor.apply();
+  }
+
   public boolean getDefaultClipboardSync() {
     return sharedPreferences.getBoolean("defaultClipboardSync", false);
   }
@@ -232,6 +259,15 @@ public final class Setting {
     editor.apply();
   }
 
+  public boolean getSharedIoThread() {
+    return sharedPreferences.getBoolean("sharedIoThread", false);
+  }
+
+  public void setSharedIoThread(boolean value) {
+    editor.putBoolean("sharedIoThread", value);
+    editor.apply();
+  }
+
   public boolean getShowReconnect() {
     return sharedPreferences.getBoolean("showReconnect", true);
   }
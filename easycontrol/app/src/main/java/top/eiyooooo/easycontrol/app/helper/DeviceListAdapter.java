@@ -23,6 +23,7 @@ import java.util.concurrent.TimeUnit;
 
 import top.eiyooooo.easycontrol.app.StartDeviceActivity;
 import top.eiyooooo.easycontrol.app.adb.Adb;
+import top.eiyooooo.easycontrol.app.adb.AdbManager;
 import top.eiyooooo.easycontrol.app.client.Client;
 import top.eiyooooo.easycontrol.app.entity.AppData;
 import top.eiyooooo.easycontrol.app.entity.Device;
@@ -212,17 +213,8 @@ public class DeviceListAdapter extends BaseExpandableListAdapter {
 
     checkConnectionExecutor.execute(() -> {
       try {
-        if (!Adb.adbMap.containsKey(device.uuid)) {
-          if (device.isLinkDevice()) {
-            Adb adb = new Adb(device.uuid, linkDevices.get(device.uuid), AppData.keyPair);
-            Adb.adbMap.put(device.uuid, adb);
-          }
-          else {
-            new Adb(device.address, AppData.keyPair);
-            Adb adb = new Adb(device.uuid, device.address, AppData.keyPair);
-            Adb.adbMap.put(device.uuid, adb);
-          }
-        }
+        // 已有连接直接复用，与其他位置同时发起的连接会合并为一次
+        AdbManager.connect(device, device.isLinkDevice() ? linkDevices.get(device.uuid) : null);
         synchronized (checkingConnection) {
           checkingConnection.wait();
         }
@@ -286,9 +278,7 @@ public class DeviceListAdapter extends BaseExpandableListAdapter {
     });
     itemSetDeviceBinding.buttonDelete.setOnClickListener(v -> {
       AppData.dbHelper.delete(device);
-      if (Adb.adbMap.containsKey(device.uuid)) {
-        Objects.requireNonNull(Adb.adbMap.get(device.uuid)).close();
-      }
+      AdbManager.close(device.uuid);
       update();
       dialog.cancel();
     });
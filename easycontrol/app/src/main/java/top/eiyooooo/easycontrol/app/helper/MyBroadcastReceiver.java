@@ -11,7 +11,7 @@ import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
 import android.os.Build;
-import top.eiyooooo.easycontrol.app.adb.Adb;
+import top.eiyooooo.easycontrol.app.adb.AdbManager;
 import top.eiyooooo.easycontrol.app.entity.AppData;
 import top.eiyooooo.easycontrol.app.entity.Device;
 import top.eiyooooo.easycontrol.app.R;
@@ -186,7 +186,7 @@ public class MyBroadcastReceiver extends BroadcastReceiver {
       if (tmp.getVendorId() == usbDevice.getVendorId() && tmp.getProductId() == usbDevice.getProductId()) {
         for (Client client : Client.allClient) if (client.uuid.equals(entry.getKey())) client.release(AppData.main.getString(R.string.error_stream_closed));
         DeviceListAdapter.linkDevices.remove(entry.getKey());
-        Adb.adbMap.remove(entry.getKey());
+        AdbManager.close(entry.getKey());
         ConnectHelper.needStartDefaultUSB.remove(entry.getKey());
         break;
       }
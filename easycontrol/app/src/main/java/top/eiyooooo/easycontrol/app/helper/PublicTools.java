@@ -42,6 +42,7 @@ import java.util.regex.Pattern;
 import top.eiyooooo.easycontrol.app.R;
 import top.eiyooooo.easycontrol.app.WebViewActivity;
 import top.eiyooooo.easycontrol.app.adb.Adb;
+import top.eiyooooo.easycontrol.app.adb.AdbManager;
 import top.eiyooooo.easycontrol.app.client.Client;
 import top.eiyooooo.easycontrol.app.databinding.*;
 import top.eiyooooo.easycontrol.app.entity.AppData;
@@ -255,8 +256,8 @@ public class PublicTools {
     itemAddDeviceBinding.ok.setOnClickListener(v -> {
       if (device.type == Device.TYPE_NORMAL) {
         if (String.valueOf(itemAddDeviceBinding.address.getText()).isEmpty()) return;
-        else if (Adb.adbMap.containsKey(device.uuid) && !Objects.equals(device.address, String.valueOf(itemAddDeviceBinding.address.getText()))) {
-          Objects.requireNonNull(Adb.adbMap.get(device.uuid)).close();
+        else if (AdbManager.contains(device.uuid) && !Objects.equals(device.address, String.valueOf(itemAddDeviceBinding.address.getText()))) {
+          AdbManager.close(device.uuid);
         }
       }
       device.name = String.valueOf(itemAddDeviceBinding.name.getText());
@@ -273,6 +274,7 @@ public class PublicTools {
   // 创建设备参数设置页面
   private static final String[] maxFpsList = new String[]{"90", "60", "40", "30", "20", "10"};
   private static final String[] maxVideoBitList = new String[]{"12", "8", "4", "2", "1"};
+  private static final String[] minFpsList = new String[]{"30", "20", "15", "10"};
 
   public static void createDeviceOptionSet(Context context, ViewGroup fatherLayout, Device device) {
     // Device为null，则视为设置默认参数
@@ -281,6 +283,8 @@ public class PublicTools {
     ArrayAdapter<String> maxSizeAdapter = new ArrayAdapter<>(AppData.main, R.layout.item_spinner_item, new String[]{context.getString(R.string.option_max_size_original), "2560", "1920", "1600", "1280", "1024", "800"});
     ArrayAdapter<String> maxFpsAdapter = new ArrayAdapter<>(AppData.main, R.layout.item_spinner_item, maxFpsList);
     ArrayAdapter<String> maxVideoBitAdapter = new ArrayAdapter<>(AppData.main, R.layout.item_spinner_item, maxVideoBitList);
+    ArrayAdapter<String> minVideoBitAdapter = new ArrayAdapter<>(AppData.main, R.layout.item_spinner_item, new String[]{context.getString(R.string.option_min_video_bit_off), "4", "2", "1"});
+    ArrayAdapter<String> minFpsAdapter = new ArrayAdapter<>(AppData.main, R.layout.item_spinner_item, minFpsList);
     // 添加参数视图
     fatherLayout.addView(createSpinnerCard(context, context.getString(R.string.option_max_size), context.getString(R.string.option_max_size_detail), String.valueOf(setDefault ? AppData.setting.getDefaultMaxSize() : device.maxSize), maxSizeAdapter, str -> {
       if (str.equals(context.getString(R.string.option_max_size_original))) str = "0";
@@ -295,6 +299,16 @@ public class PublicTools {
       if (setDefault) AppData.setting.setDefaultMaxVideoBit(Integer.parseInt(str));
       else device.maxVideoBit = Integer.parseInt(str);
     }).getRoot());
+    int minVideoBit = setDefault ? AppData.setting.getDefaultMinVideoBit() : device.minVideoBit;
+    fatherLayout.addView(createSpinnerCard(context, context.getString(R.string.option_min_video_bit), context.getString(R.string.option_min_video_bit_detail), minVideoBit == 0 ? context.getString(R.string.option_min_video_bit_off) : String.valueOf(minVideoBit), minVideoBitAdapter, str -> {
+      if (str.equals(context.getString(R.string.option_min_video_bit_off))) str = "0";
+      if (setDefault) AppData.setting.setDefaultMinVideoBit(Integer.parseInt(str));
+      else device.minVideoBit = Integer.parseInt(str);
+    }).getRoot());
+    fatherLayout.addView(createSpinnerCard(context, context.getString(R.string.option_min_fps), context.getString(R.string.option_min_fps_detail), String.valueOf(setDefault ? AppData.setting.getDefaultMinFps() : device.minFps), minFpsAdapter, str -> {
+      if (setDefault) AppData.setting.setDefaultMinFps(Integer.parseInt(str));
+      else device.minFps = Integer.parseInt(str);
+    }).getRoot());
     if (device != null) {
       if (device.isNormalDevice())
         fatherLayout.addView(createSwitchCard(context, context.getString(R.string.option_startup_device), context.getString(R.string.option_startup_device_detail), device.connectOnStart, isChecked -> device.connectOnStart = isChecked).getRoot());
@@ -321,6 +335,11 @@ public class PublicTools {
       if (setDefault) AppData.setting.setDefaultUseOpus(isChecked);
       else device.useOpus = isChecked;
     }).getRoot());
+    if (setDefault || device.isNormalDevice())
+      fatherLayout.addView(createSwitchCard(context, context.getString(R.string.option_use_nio_channel), context.getString(R.string.option_use_nio_channel_detail), setDefault ? AppData.setting.getDefaultUseNioChannel() : device.useNioChannel, isChecked -> {
+        if (setDefault) AppData.setting.setDefaultUseNioChannel(isChecked);
+        else device.useNioChannel = isChecked;
+      }).getRoot());
     fatherLayout.addView(createSwitchCard(context, context.getString(R.string.option_default_full), context.getString(R.string.option_default_full_detail), setDefault ? AppData.setting.getDefaultFull() : device.defaultFull, isChecked -> {
       if (setDefault) AppData.setting.setDefaultFull(isChecked);
       else device.defaultFull = isChecked;
@@ -8,6 +8,7 @@ import android.view.Display;
 import top.eiyooooo.easycontrol.server.entity.Device;
 import top.eiyooooo.easycontrol.server.entity.Options;
 import top.eiyooooo.easycontrol.server.helper.AudioEncode;
+import top.eiyooooo.easycontrol.server.helper.BitrateControl;
 import top.eiyooooo.easycontrol.server.helper.ControlPacket;
 import top.eiyooooo.easycontrol.server.helper.VideoEncode;
 import top.eiyooooo.easycontrol.server.utils.L;
@@ -18,8 +19,11 @@ import top.eiyooooo.easycontrol.server.wrappers.UiModeManager;
 import java.io.DataInputStream;
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public final class Scrcpy {
     private static final Object object = new Object();
@@ -176,6 +180,12 @@ public final class Scrcpy {
                         if (Device.oldNightMode == -1) Device.oldNightMode = UiModeManager.getNightMode();
                         UiModeManager.setNightMode(inputStream.readByte());
                         break;
+                    case 10:
+                        VideoEncode.requestSyncFrame();
+                        break;
+                    case 11:
+                        BitrateControl.onClientReport(inputStream.readInt(), inputStream.readInt());
+                        break;
                 }
             }
         } catch (Exception e) {
@@ -191,6 +201,91 @@ public final class Scrcpy {
         while (byteBuffer.remaining() > 0) Os.write(videoFD, byteBuffer);
     }
 
+    // 多个缓冲一次聚集写出，缓冲须为直接缓冲或数组缓冲
+    public synchronized static void writeVideo(ByteBuffer[] byteBuffers) throws IOException, ErrnoException {
+        writev(videoFD, byteBuffers);
+    }
+
+    // Os.writev为隐藏接口，反射获取一次，不可用时逐个写出（同样不复制）
+    private static Object writevTarget;
+    private static Method writevMethod;
+    private static boolean writevChecked = false;
+    private static Object[] iovBuffers;
+    private static int[] iovOffsets;
+    private static int[] iovByteCounts;
+
+    private static void initWritev() {
+        writevChecked = true;
+        Class<?>[] types = {FileDescriptor.class, Object[].class, int[].class, int[].class};
+        try {
+            // 优先使用libcore的实例，与Os.write走相同的路径
+            Object os = Class.forName("libcore.io.Libcore").getField("os").get(null);
+            writevMethod = os.getClass().getMethod("writev", types);
+            writevTarget = os;
+            return;
+        } catch (Exception ignored) {
+        }
+        try {
+            writevMethod = Os.class.getMethod("writev", types);
+            writevTarget = null;
+        } catch (Exception e) {
+            writevMethod = null;
+            L.w("writev unavailable", e);
+        }
+    }
+
+    private static void writev(FileDescriptor fd, ByteBuffer[] byteBuffers) throws IOException, ErrnoException {
+        if (!writevChecked) initWritev();
+        int index = 0;
+        while (index < byteBuffers.length && !byteBuffers[index].hasRemaining()) index++;
+        if (writevMethod == null) {
+            for (; index < byteBuffers.length; index++)
+                while (byteBuffers[index].hasRemaining()) Os.write(fd, byteBuffers[index]);
+            return;
+        }
+        while (index < byteBuffers.length) {
+            int count = byteBuffers.length - index;
+            if (iovBuffers == null || iovBuffers.length != count) {
+                iovBuffers = new Object[count];
+                iovOffsets = new int[count];
+                iovByteCounts = new int[count];
+            }
+            for (int i = 0; i < count; i++) {
+                ByteBuffer byteBuffer = byteBuffers[index + i];
+                if (byteBuffer.isDirect()) {
+                    iovBuffers[i] = byteBuffer;
+                    iovOffsets[i] = byteBuffer.position();
+                } else {
+                    iovBuffers[i] = byteBuffer.array();
+                    iovOffsets[i] = byteBuffer.arrayOffset() + byteBuffer.position();
+                }
+                iovByteCounts[i] = byteBuffer.remaining();
+            }
+            int written;
+            try {
+                written = (int) writevMethod.invoke(writevTarget, fd, iovBuffers, iovOffsets, iovByteCounts);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof ErrnoException) throw (ErrnoException) cause;
+                if (cause instanceof IOException) throw (IOException) cause;
+                throw new IOException(cause);
+            } catch (IllegalAccessException e) {
+                throw new IOException(e);
+            } finally {
+                Arrays.fill(iovBuffers, null);
+            }
+            // 部分写出时推进各缓冲的位置后继续
+            while (index < byteBuffers.length) {
+                ByteBuffer byteBuffer = byteBuffers[index];
+                int len = Math.min(written, byteBuffer.remaining());
+                byteBuffer.position(byteBuffer.position() + len);
+                written -= len;
+                if (byteBuffer.hasRemaining()) break;
+                index++;
+            }
+        }
+    }
+
     public static void errorClose(Exception e) {
         L.e("errorClose: ", e);
         synchronized (object) {
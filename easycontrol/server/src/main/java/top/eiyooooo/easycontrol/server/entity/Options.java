@@ -7,6 +7,9 @@ public final class Options {
     public static int maxSize = 1600;
     public static int maxVideoBit = 4000000;
     public static int maxFps = 60;
+    // 自适应码率下限，0为关闭
+    public static int minVideoBit = 0;
+    public static int minFps = 0;
     public static int displayId = 0;
     public static boolean keepAwake = true;
     public static boolean TurnOnScreenIfStart = true;
@@ -16,6 +19,8 @@ public final class Options {
     public static boolean useH265 = true;
     public static boolean useOpus = true;
     public static int mirrorMode = 0;
+    // 异步编码需要带Handler的setCallback（安卓6）
+    public static boolean asyncEncode = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
 
     public static void parse(String... args) {
         for (String arg : args) {
@@ -36,6 +41,12 @@ public final class Options {
                 case "maxVideoBit":
                     maxVideoBit = Integer.parseInt(value) * 1000000;
                     break;
+                case "minVideoBit":
+                    minVideoBit = Integer.parseInt(value) * 1000000;
+                    break;
+                case "minFps":
+                    minFps = Integer.parseInt(value);
+                    break;
                 case "displayId":
                     displayId = Integer.parseInt(value);
                     break;
@@ -55,6 +66,9 @@ public final class Options {
                 case "useOpus":
                     useOpus = Integer.parseInt(value) == 1;
                     break;
+                case "asyncEncode":
+                    asyncEncode = Integer.parseInt(value) == 1 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+                    break;
                 case "mirrorMode":
                     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
                         mirrorMode = 0;
@@ -0,0 +1,123 @@
+package top.eiyooooo.easycontrol.server.helper;
+
+import top.eiyooooo.easycontrol.server.entity.Options;
+import top.eiyooooo.easycontrol.server.utils.L;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 自适应码率与帧率：根据客户端上报的解码积压、接收缓冲与本端写出阻塞时间判断拥堵
+// 拥堵时先按比例降低码率，降至下限仍持续拥堵才降低帧率；持续通畅后先恢复帧率，再逐步回升码率
+// 帧率只能通过重启编码器修改（镜像模式下还会重建虚拟显示器），因此只作为最后手段：一次降到下限、一次恢复，且两次修改之间至少间隔FPS_CHANGE_INTERVAL
+public final class BitrateControl {
+    // 单次写出超过该时间视为阻塞
+    private static final long STALL_THRESHOLD_US = 20_000;
+    // 一个上报周期内（约1.5秒）的拥堵判断阈值
+    private static final long CONGESTED_STALL_US = 150_000;
+    private static final int CONGESTED_PENDING_FRAMES = 4;
+    private static final int CONGESTED_BUFFERED_BYTES = 256 * 1024;
+    // 连续通畅多少个周期后回升一档
+    private static final int RECOVER_PERIODS = 3;
+    // 码率处于下限时连续拥堵多少个周期后降低帧率
+    private static final int FPS_DOWN_PERIODS = 4;
+    // 帧率降低后连续通畅多少个周期后恢复
+    private static final int FPS_UP_PERIODS = 10;
+    // 两次修改帧率之间的最小间隔
+    private static final long FPS_CHANGE_INTERVAL = 30_000;
+
+    private static int videoBit;
+    private static int fps;
+    private static int minVideoBit;
+    private static int minFps;
+    private static final AtomicLong stallUs = new AtomicLong(0);
+    private static final AtomicInteger droppedFrames = new AtomicInteger(0);
+    private static int clearPeriods = 0;
+    private static int congestedPeriods = 0;
+    // 调整后跳过的周期数，等待积压的数据排空
+    private static int holdPeriods = 0;
+    private static long lastFpsChangeTime = 0;
+
+    public static synchronized void init() {
+        videoBit = Options.maxVideoBit;
+        fps = Options.maxFps;
+        minVideoBit = Math.min(Options.minVideoBit, Options.maxVideoBit);
+        minFps = Math.min(Options.minFps, Options.maxFps);
+        if (isEnabled()) L.i("adaptive: bitrate " + minVideoBit / 1000 + "-" + Options.maxVideoBit / 1000 + " kbps, fps " + minFps + "-" + Options.maxFps);
+    }
+
+    public static boolean isEnabled() {
+        return minVideoBit > 0;
+    }
+
+    public static synchronized int getVideoBit() {
+        return videoBit;
+    }
+
+    public static synchronized int getFps() {
+        return fps;
+    }
+
+    // 由视频写出线程在每帧写出后调用
+    public static void onFrameWritten(long writeUs) {
+        if (writeUs > STALL_THRESHOLD_US) stallUs.addAndGet(writeUs);
+    }
+
+    // 拥堵丢帧时调用，有丢帧的周期视为拥堵
+    public static void onFrameDropped() {
+        droppedFrames.incrementAndGet();
+    }
+
+    // 由控制线程在收到客户端上报时调用
+    public static synchronized void onClientReport(int pendingFrames, int bufferedBytes) {
+        if (!isEnabled()) return;
+        long stall = stallUs.getAndSet(0);
+        int dropped = droppedFrames.getAndSet(0);
+        if (holdPeriods > 0) {
+            holdPeriods--;
+            return;
+        }
+        String reason = "stall " + stall / 1000 + " ms, pending " + pendingFrames + ", buffered " + bufferedBytes / 1024 + " KB, dropped " + dropped;
+        boolean congested = dropped > 0 || stall > CONGESTED_STALL_US || pendingFrames >= CONGESTED_PENDING_FRAMES || bufferedBytes >= CONGESTED_BUFFERED_BYTES;
+        if (congested) {
+            clearPeriods = 0;
+            if (videoBit > minVideoBit) {
+                congestedPeriods = 0;
+                setVideoBit(Math.max(minVideoBit, videoBit * 7 / 10), reason);
+            } else if (fps > minFps && ++congestedPeriods >= FPS_DOWN_PERIODS && canChangeFps()) {
+                congestedPeriods = 0;
+                setFps(minFps, reason);
+            }
+        } else {
+            congestedPeriods = 0;
+            clearPeriods++;
+            if (fps < Options.maxFps) {
+                if (clearPeriods < FPS_UP_PERIODS || !canChangeFps()) return;
+                clearPeriods = 0;
+                setFps(Options.maxFps, reason);
+            } else if (clearPeriods >= RECOVER_PERIODS) {
+                clearPeriods = 0;
+                if (videoBit < Options.maxVideoBit) setVideoBit(Math.min(Options.maxVideoBit, videoBit + Options.maxVideoBit / 10), reason);
+            }
+        }
+    }
+
+    private static void setVideoBit(int newVideoBit, String reason) {
+        L.i("adaptive: bitrate " + videoBit / 1000 + " -> " + newVideoBit / 1000 + " kbps (" + reason + ")");
+        videoBit = newVideoBit;
+        VideoEncode.setVideoBit(newVideoBit);
+        holdPeriods = 1;
+    }
+
+    private static boolean canChangeFps() {
+        return System.currentTimeMillis() - lastFpsChangeTime >= FPS_CHANGE_INTERVAL;
+    }
+
+    // 帧率只能在配置编码器时设置，通过重启编码器生效
+    private static void setFps(int newFps, String reason) {
+        L.i("adaptive: fps " + fps + " -> " + newFps + " (" + reason + ")");
+        fps = newFps;
+        lastFpsChangeTime = System.currentTimeMillis();
+        VideoEncode.isHasChangeConfig = true;
+        holdPeriods = 2;
+    }
+}
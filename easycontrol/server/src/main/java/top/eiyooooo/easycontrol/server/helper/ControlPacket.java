@@ -10,15 +10,26 @@ import java.nio.charset.StandardCharsets;
 
 public final class ControlPacket {
 
-    public static void sendVideoEvent(long pts, ByteBuffer data) throws IOException, ErrnoException {
+    // 长度与PTS使用复用的缓冲，与编码器输出缓冲一起聚集写出，帧数据不在Java层复制
+    private static final ByteBuffer videoSizeBuffer = ByteBuffer.allocateDirect(4);
+    private static final ByteBuffer videoPtsBuffer = ByteBuffer.allocateDirect(8);
+    private static final ByteBuffer[] videoBuffers = new ByteBuffer[3];
+
+    public static synchronized void sendVideoEvent(long pts, ByteBuffer data) throws IOException, ErrnoException {
         int size = data.remaining();
         if (size < 0) return;
-        ByteBuffer byteBuffer = ByteBuffer.allocate(12 + size);
-        byteBuffer.putInt(size);
-        byteBuffer.put(data);
-        byteBuffer.putLong(pts);
-        byteBuffer.flip();
-        Scrcpy.writeVideo(byteBuffer);
+        videoSizeBuffer.clear();
+        videoSizeBuffer.putInt(size).flip();
+        videoPtsBuffer.clear();
+        videoPtsBuffer.putLong(pts).flip();
+        videoBuffers[0] = videoSizeBuffer;
+        videoBuffers[1] = data;
+        videoBuffers[2] = videoPtsBuffer;
+        try {
+            Scrcpy.writeVideo(videoBuffers);
+        } finally {
+            videoBuffers[1] = null;
+        }
     }
 
     public static void sendAudioEvent(ByteBuffer data) throws IOException, ErrnoException {
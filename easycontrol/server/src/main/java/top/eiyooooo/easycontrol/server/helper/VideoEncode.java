@@ -6,7 +6,11 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
 import android.system.ErrnoException;
 import android.view.Surface;
 import top.eiyooooo.easycontrol.server.Scrcpy;
@@ -21,6 +25,8 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public final class VideoEncode {
     private static MediaCodec encoder;
@@ -32,6 +38,7 @@ public final class VideoEncode {
     private static final HashMap<Integer, VirtualDisplay> virtualDisplays = new HashMap<>();
 
     public static void init() throws Exception {
+        BitrateControl.init();
         useH265 = Options.useH265 && Device.isEncoderSupport("hevc");
         ByteBuffer byteBuffer = ByteBuffer.allocate(9);
         byteBuffer.put((byte) (useH265 ? 1 : 0));
@@ -73,6 +80,11 @@ public final class VideoEncode {
     private static Surface surface;
 
     public static void startEncode() throws Exception {
+        if (Options.asyncEncode) setAsyncCallback();
+        // 使用自适应调整后的码率与帧率
+        encoderFormat.setInteger(MediaFormat.KEY_BIT_RATE, BitrateControl.getVideoBit());
+        encoderFormat.setInteger(MediaFormat.KEY_FRAME_RATE, BitrateControl.getFps());
+        encoderFormat.setFloat("max-fps-to-encoder", BitrateControl.getFps());
         encoderFormat.setInteger(MediaFormat.KEY_WIDTH, Device.videoSize.first);
         encoderFormat.setInteger(MediaFormat.KEY_HEIGHT, Device.videoSize.second);
         encoder.configure(encoderFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
@@ -107,8 +119,35 @@ public final class VideoEncode {
         ControlPacket.sendVideoSizeEvent();
     }
 
+    // 运行中调整码率，无需重启编码器
+    public static void setVideoBit(int videoBit) {
+        Bundle bundle = new Bundle();
+        bundle.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, videoBit);
+        setParameters(bundle);
+    }
+
+    // 请求尽快输出关键帧
+    public static void requestSyncFrame() {
+        Bundle bundle = new Bundle();
+        bundle.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        setParameters(bundle);
+    }
+
+    private static void setParameters(Bundle bundle) {
+        try {
+            encoder.setParameters(bundle);
+        } catch (IllegalStateException e) {
+            // 编码器重启中，重启时会使用新的参数并以关键帧开始
+            L.w("setParameters error", e);
+        }
+    }
+
     public static void stopEncode() {
         encoder.stop();
+        // 停止后旧的缓冲区序号全部失效
+        outputQueue.clear();
+        // 重启后以关键帧开始，无需继续丢帧
+        isDropping = false;
         encoder.reset();
         surface.release();
     }
@@ -127,23 +166,187 @@ public final class VideoEncode {
     private static final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
 
     public static void encodeOut() throws IOException, ErrnoException {
+        if (Options.asyncEncode) {
+            writeOut();
+            return;
+        }
         try {
             // 找到已完成的输出缓冲区
             int outIndex;
             do outIndex = encoder.dequeueOutputBuffer(bufferInfo, -1); while (outIndex < 0);
             ByteBuffer buffer = encoder.getOutputBuffer(outIndex);
             if (buffer == null) return;
+            long writeTime = System.nanoTime() / 1000;
+            // 同步模式没有排队时间，以采集时间起算
+            long delay = writeTime - bufferInfo.presentationTimeUs;
+            if (shouldDrop(bufferInfo.flags, delay < 0 || delay > 60_000_000 ? 0 : delay)) {
+                encoder.releaseOutputBuffer(outIndex, false);
+                return;
+            }
             ControlPacket.sendVideoEvent(bufferInfo.presentationTimeUs, buffer);
+            BitrateControl.onFrameWritten(System.nanoTime() / 1000 - writeTime);
             encoder.releaseOutputBuffer(outIndex, false);
         } catch (IllegalStateException e) {
             L.e("encodeOut error", e);
         }
     }
 
+    // 异步模式：编码器回调在独立的Looper线程上只登记完成的缓冲区，由写出线程发送并释放
+    // 写出慢时编码器仍可向其余缓冲区输出，不会被套接字阻塞
+    private static HandlerThread callbackThread;
+    private static final LinkedBlockingQueue<OutputFrame> outputQueue = new LinkedBlockingQueue<>();
+
+    private static final class OutputFrame {
+        private final int index;
+        private final long pts;
+        private final int flags;
+        private final long availableTime;
+
+        private OutputFrame(int index, long pts, int flags, long availableTime) {
+            this.index = index;
+            this.pts = pts;
+            this.flags = flags;
+            this.availableTime = availableTime;
+        }
+    }
+
+    private static void setAsyncCallback() {
+        if (callbackThread == null) {
+            callbackThread = new HandlerThread("VideoEncode", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            callbackThread.start();
+        }
+        encoder.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                // 输入来自Surface
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                outputQueue.offer(new OutputFrame(index, info.presentationTimeUs, info.flags, System.nanoTime() / 1000));
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                Scrcpy.errorClose(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            }
+        }, new Handler(callbackThread.getLooper()));
+    }
+
+    // 写出阶段，等待超时后返回，以便调用方处理配置变化与心跳超时
+    private static void writeOut() throws IOException, ErrnoException {
+        OutputFrame frame;
+        try {
+            frame = outputQueue.poll(100, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (frame == null) return;
+        try {
+            long writeTime = System.nanoTime() / 1000;
+            if (shouldDrop(frame.flags, writeTime - frame.availableTime)) {
+                encoder.releaseOutputBuffer(frame.index, false);
+                return;
+            }
+            ByteBuffer buffer = encoder.getOutputBuffer(frame.index);
+            if (buffer == null) return;
+            ControlPacket.sendVideoEvent(frame.pts, buffer);
+            long releaseTime = System.nanoTime() / 1000;
+            encoder.releaseOutputBuffer(frame.index, false);
+            BitrateControl.onFrameWritten(releaseTime - writeTime);
+            statistics.onFrame(frame.availableTime - frame.pts, writeTime - frame.availableTime, releaseTime - writeTime);
+        } catch (IllegalStateException e) {
+            L.e("encodeOut error", e);
+        }
+    }
+
+    // 拥堵丢帧：帧等待写出超过DROP_DELAY_US时开始丢弃，而不是排队后集中发出过期画面
+    // 丢弃帧之后的帧缺少参考帧，需一直丢到关键帧；积压排空后请求关键帧并从关键帧恢复发送
+    private static final long DROP_DELAY_US = 100_000;
+    private static final long RESUME_DELAY_US = 30_000;
+    // 请求关键帧后超过该时间仍未收到则直接恢复，由帧内刷新修复画面
+    private static final long SYNC_WAIT_US = 1_000_000;
+    private static boolean isDropping = false;
+    private static long dropStartTime;
+    private static long syncRequestTime;
+    private static int dropCount;
+    // 累计丢帧数与最大排队延迟
+    public static int droppedFrames = 0;
+    public static long maxQueueDelayUs = 0;
+
+    private static boolean shouldDrop(int flags, long queueDelay) {
+        if (queueDelay > maxQueueDelayUs) maxQueueDelayUs = queueDelay;
+        // 编码参数不可丢弃
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return false;
+        long now = System.nanoTime() / 1000;
+        if (!isDropping) {
+            if (queueDelay <= DROP_DELAY_US) return false;
+            isDropping = true;
+            dropStartTime = now;
+            syncRequestTime = 0;
+            dropCount = 0;
+            L.w("video: congested, queue delay " + queueDelay / 1000 + " ms, dropping frames");
+        } else if (queueDelay <= RESUME_DELAY_US) {
+            if (syncRequestTime == 0) {
+                syncRequestTime = now;
+                requestSyncFrame();
+            }
+            boolean isKeyFrame = (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            if (isKeyFrame || now - syncRequestTime > SYNC_WAIT_US) {
+                isDropping = false;
+                L.i("video: recovered" + (isKeyFrame ? "" : " without sync frame") + ", dropped " + dropCount + " frames in " + (now - dropStartTime) / 1000 + " ms, total dropped " + droppedFrames + ", max queue delay " + maxQueueDelayUs / 1000 + " ms");
+                return false;
+            }
+        }
+        dropCount++;
+        droppedFrames++;
+        BitrateControl.onFrameDropped();
+        return true;
+    }
+
+    // 分别统计编码（采集到输出可用）、排队与发送耗时，定期输出日志
+    private static final Statistics statistics = new Statistics();
+
+    private static final class Statistics {
+        private static final long LOG_INTERVAL = 10_000_000;
+        private int frames = 0;
+        private int encodeFrames = 0;
+        private long encodeUs = 0;
+        private long queueUs = 0;
+        private long writeUs = 0;
+        private long maxWriteUs = 0;
+        private long startTime = 0;
+
+        private void onFrame(long encode, long queue, long write) {
+            long now = System.nanoTime() / 1000;
+            if (startTime == 0) startTime = now;
+            frames++;
+            // Surface输入的时间戳与System.nanoTime同源，异常时不计入
+            if (encode > 0) {
+                encodeFrames++;
+                encodeUs += encode;
+            }
+            queueUs += queue;
+            writeUs += write;
+            maxWriteUs = Math.max(maxWriteUs, write);
+            if (now - startTime < LOG_INTERVAL) return;
+            L.d("video: " + (frames * 1000_000L / (now - startTime)) + " fps, encode " + (encodeFrames == 0 ? 0 : encodeUs / encodeFrames / 1000f) + " ms, queue " + queueUs / frames / 1000f + " ms, write " + writeUs / frames / 1000f + " ms (max " + maxWriteUs / 1000f + " ms), dropped " + droppedFrames + ", max queue delay " + maxQueueDelayUs / 1000 + " ms");
+            frames = encodeFrames = 0;
+            encodeUs = queueUs = writeUs = maxWriteUs = 0;
+            startTime = now;
+        }
+    }
+
     public static void release() {
         try {
             stopEncode();
             encoder.release();
+            if (callbackThread != null) callbackThread.quitSafely();
             SurfaceControl.destroyDisplay(display);
             for (VirtualDisplay virtualDisplay : virtualDisplays.values()) {
                 virtualDisplay.release();